@@ -0,0 +1,130 @@
+package bench.org.shineupdate;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times operations for the benchmarks. JMH can't be part of this build, so this does the minimum by hand: every
+ * benchmark is warmed up, then measured in a number of rounds. Reported are the median time per operation, the
+ * throughput for benchmarks that process a known number of bytes and, for benchmarks that run on the calling
+ * thread only, the bytes allocated per operation. The threads of a pool come and go during a round and what they
+ * allocated can't be sampled reliably, so that column is n/a for the others.
+ * <p>
+ * <code>-Dbench.warmup=&lt;ms&gt;</code>, <code>-Dbench.rounds=&lt;n&gt;</code> and
+ * <code>-Dbench.round=&lt;ms&gt;</code> change the defaults (2000 ms, 5 rounds of 1000 ms).
+ */
+public final class Harness {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.warmup", 2000));
+	private static final int ROUNDS		   = Integer.getInteger("bench.rounds", 5);
+	private static final long ROUND_NANOS  = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.round", 1000));
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private Harness() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static void measure(final String name, final Operation operation)
+						throws Exception {
+
+		/* warm up */
+		long start = System.nanoTime();
+		while ((System.nanoTime() - start) < WARMUP_NANOS) {
+			operation.run();
+			operation.reset();
+		}
+
+		/* measure, only run() is timed */
+		double nanosPerOp[] = new double[ROUNDS];
+		long operations     = 0;
+		long allocated	    = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+
+			long roundAllocated = allocatedBytes();
+			long roundOps	    = 0;
+			long timed		    = 0;
+			while ((timed < ROUND_NANOS) || (roundOps == 0)) {
+				long before = System.nanoTime();
+				operation.run();
+				timed = timed + (System.nanoTime() - before);
+				operation.reset();
+				roundOps++;
+			}
+
+			nanosPerOp[round] = timed / (double) roundOps;
+			operations		  = operations + roundOps;
+			allocated		  = allocated + (allocatedBytes() - roundAllocated);
+		}
+
+		Arrays.sort(nanosPerOp);
+		double median = nanosPerOp[ROUNDS / 2];
+
+		String throughput = "";
+		if (operation.bytes() > 0) {
+			throughput = String.format("%8.1f MB/s", (operation.bytes() / (1024.0 * 1024.0)) / (median / 1e9));
+		}
+
+		String allocation = "n/a";
+		if (operation.singleThreaded()) {
+			allocation = formatBytes(allocated / operations);
+		}
+
+		System.out.println(
+			String.format("%-44s %12s/op %13s %12s alloc/op", name, formatNanos(median), throughput, allocation));
+	}
+
+	/** by the calling thread */
+	private static long allocatedBytes() {
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String formatNanos(final double nanos) {
+		if (nanos < 1e3) {
+			return String.format("%.0f ns", nanos);
+		} else if (nanos < 1e6) {
+			return String.format("%.1f us", nanos / 1e3);
+		} else if (nanos < 1e9) {
+			return String.format("%.1f ms", nanos / 1e6);
+		} else {
+			return String.format("%.2f s", nanos / 1e9);
+		}
+	}
+
+	private static String formatBytes(final long bytes) {
+		if (bytes < 1024) {
+			return bytes + " B";
+		} else if (bytes < (1024 * 1024)) {
+			return String.format("%.1f KB", bytes / 1024.0);
+		} else {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	public abstract static class Operation {
+
+		/** the timed part */
+		protected abstract void run() throws Exception;
+
+		/** undoes what {@link #run()} left behind, not timed */
+		protected void reset() throws Exception {}
+
+		/** bytes processed by one run, for the throughput; 0 if it doesn't apply */
+		protected long bytes() {
+			return 0;
+		}
+
+		/** false if the work is handed to other threads, the allocation isn't reported then */
+		protected boolean singleThreaded() {
+			return true;
+		}
+	}
+}
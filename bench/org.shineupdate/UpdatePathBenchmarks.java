@@ -0,0 +1,371 @@
+package bench.org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.appkit.concurrent.Report;
+import org.appkit.osdependant.OSUtils;
+import org.appkit.templating.Templating;
+import org.appkit.util.Texts;
+
+import org.eclipse.swt.SWTError;
+import org.eclipse.swt.widgets.Display;
+
+import org.shineupdate.DownloadProgress;
+import org.shineupdate.Downloader;
+import org.shineupdate.FileHelper;
+import org.shineupdate.ShineUpdate;
+import org.shineupdate.StaticConfig;
+import org.shineupdate.UpdateWindow;
+import org.shineupdate.VersionDescription;
+import org.shineupdate.VersionDescriptionBrowser;
+
+/**
+ * Benchmarks of the update path: parsing the description, hashing, extracting, downloading, rendering the changelog
+ * and opening the update window. Fixtures are generated into a temporary directory, downloads come from an
+ * in-process server.
+ * <p>
+ * <code>ant bench</code> or <code>java bench.org.shineupdate.UpdatePathBenchmarks [name-filter]</code>
+ */
+public final class UpdatePathBenchmarks {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Random RANDOM = new Random(42);
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private UpdatePathBenchmarks() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static void main(final String args[]) throws Exception {
+
+		String filter = (args.length > 0) ? args[0] : "";
+		File dir	  = Files.createTempDir();
+		ShineUpdate.instantiate("http://127.0.0.1/", "Benchmark", "benchmark", "1.0");
+
+		try {
+			if (selected(filter, "parse")) {
+				parse(dir, "small", 2, 3);
+				parse(dir, "large", 200, 12);
+			}
+			if (selected(filter, "hash")) {
+				hash(dir, 64 * 1024);
+				hash(dir, 4 * 1024 * 1024);
+				hash(dir, 64 * 1024 * 1024);
+			}
+			if (selected(filter, "unzip")) {
+				unzip(dir, "many small files", 10000, 2 * 1024);
+				unzip(dir, "few large files", 4, 16 * 1024 * 1024);
+			}
+			if (selected(filter, "download")) {
+				download(dir, 1);
+				download(dir, 4);
+			}
+			if (selected(filter, "render")) {
+				render(dir);
+			}
+			if (selected(filter, "window")) {
+				window();
+			}
+		} finally {
+			FileHelper.deleteRecursively(dir);
+		}
+
+		System.exit(0);
+	}
+
+	private static void parse(final File dir, final String name, final int sections, final int items)
+					   throws Exception {
+
+		final File file = new File(dir, "description-" + name + ".txt");
+		Files.write(VersionDescriptionBenchmark.description(sections, items), file, Charsets.UTF_8);
+
+		Harness.measure(
+			"parse " + name + ", info only",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8)).getVersion();
+				}
+			});
+		Harness.measure(
+			"parse " + name + ", with changelog",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8)).getSections();
+				}
+
+				@Override
+				protected long bytes() {
+					return file.length();
+				}
+			});
+	}
+
+	private static void hash(final File dir, final int size)
+					  throws Exception {
+
+		final File file = new File(dir, "hash-" + size + ".bin");
+		Files.write(randomBytes(size), file);
+
+		Harness.measure(
+			"sha1 " + (size / 1024) + " KB",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					FileHelper.getSHA1Hash(file);
+				}
+
+				@Override
+				protected long bytes() {
+					return size;
+				}
+			});
+	}
+
+	private static void unzip(final File dir, final String name, final int files, final int fileSize)
+					   throws Exception {
+
+		/* half random, half text: roughly what an application consists of */
+		final File zip		= new File(dir, "unzip-" + files + ".zip");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			out.putNextEntry(new ZipEntry("app.exe"));
+			for (int i = 0; i < files; i++) {
+				out.putNextEntry(new ZipEntry("app/dir" + (i % 100) + "/file" + i));
+				out.write(randomBytes(fileSize / 2));
+				for (int written = 0; written < (fileSize / 2); written += 32) {
+					out.write("some text, compressing well... ".getBytes(Charsets.US_ASCII));
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		final long size = (long) files * fileSize;
+		Harness.measure(
+			"unzip " + name,
+			new Harness.Operation() {
+				private File application;
+
+				@Override
+				protected void run() {
+					this.application = FileHelper.unzipMacApplication(zip, DownloadProgress.create());
+				}
+
+				@Override
+				protected void reset() throws IOException {
+					FileHelper.deleteRecursively(this.application.getParentFile());
+				}
+
+				@Override
+				protected long bytes() {
+					return size;
+				}
+
+				@Override
+				protected boolean singleThreaded() {
+					return false;
+				}
+			});
+	}
+
+	private static void download(final File dir, final int connections)
+						  throws Exception {
+
+		final byte payload[] = randomBytes(32 * 1024 * 1024);
+		HttpServer server    = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext(
+			"/payload",
+			new HttpHandler() {
+				@Override
+				public void handle(final HttpExchange exchange) throws IOException {
+					int from = 0;
+					int to   = payload.length - 1;
+
+					String range = exchange.getRequestHeaders().getFirst("Range");
+					if (range != null) {
+						String bounds[] = range.substring("bytes=".length()).split("-");
+						from = Integer.valueOf(bounds[0]);
+						if (bounds.length > 1) {
+							to = Integer.valueOf(bounds[1]);
+						}
+						exchange.getResponseHeaders().add(
+							"Content-Range",
+							"bytes " + from + "-" + to + "/" + payload.length);
+						exchange.sendResponseHeaders(206, (to - from) + 1);
+					} else {
+						exchange.sendResponseHeaders(200, payload.length);
+					}
+
+					OutputStream out = exchange.getResponseBody();
+					try {
+						out.write(payload, from, (to - from) + 1);
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+		server.start();
+
+		StaticConfig.DOWNLOAD_CONNECTIONS	   = connections;
+		StaticConfig.EXTRACT_WHILE_DOWNLOADING = false;
+
+		String platform = OSUtils.getPlatform().toString().toLowerCase();
+		final VersionDescription versionDesc =
+			VersionDescription.parse(
+				"version: 2.0\n" + platform + ": http://127.0.0.1:" + server.getAddress().getPort() + "/payload\n"
+				+ platform + "_sha1: " + Hashing.sha1().hashBytes(payload) + "\n" + platform + "_size: "
+				+ payload.length + "\n\nforeword");
+
+		try {
+			Harness.measure(
+				"download 32 MB, " + connections + " connection(s)",
+				new Harness.Operation() {
+					private File downloaded;
+
+					@Override
+					protected void run() throws Exception {
+						Downloader downloader = Downloader.create();
+						downloader.loadUpdate(versionDesc);
+						while (true) {
+							Report report = downloader.getReports().take();
+							if (report.type == Downloader.Status.DOWNLOADED_FILE) {
+								this.downloaded = (File) report.data.get(0);
+								return;
+							} else if (report.type == Downloader.Status.ERROR) {
+								throw new IOException("download failed");
+							}
+						}
+					}
+
+					@Override
+					protected void reset() {
+						this.downloaded.delete();
+					}
+
+					@Override
+					protected long bytes() {
+						return payload.length;
+					}
+
+					@Override
+					protected boolean singleThreaded() {
+						return false;
+					}
+				});
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static void render(final File dir) throws Exception {
+
+		File file = new File(dir, "description-render.txt");
+		Files.write(VersionDescriptionBenchmark.description(30, 12), file, Charsets.UTF_8);
+
+		final VersionDescription versionDesc = VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8));
+		Harness.measure(
+			"render changelog, 30 sections",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					VersionDescriptionBrowser.toHTML(versionDesc);
+				}
+			});
+	}
+
+	/**
+	 * Time from asking for the wait dialog until it is open and the event-loop is idle again, i.e. it has been
+	 * painted. The first window pays for loading the templates and texts, it is reported separately.
+	 * <p>
+	 * Loading the templates and texts needs no display and is measured first: once cold, as the first window pays it,
+	 * and then as every window paid it before they were shared.
+	 */
+	private static void window() throws Exception {
+
+		long loaded = System.nanoTime();
+		loadWindowResources();
+		System.out.println(
+			String.format("%-44s %12.1f ms", "templates and texts, first load", (System.nanoTime() - loaded) / 1e6));
+
+		Harness.measure(
+			"templates and texts, per window unshared",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					loadWindowResources();
+				}
+			});
+
+		final Display display;
+		try {
+			display = Display.getDefault();
+		} catch (final SWTError | LinkageError e) {
+			System.out.println("window: skipped, no display (" + e.getMessage() + ")");
+			return;
+		}
+
+		long started = System.nanoTime();
+		showWaitDialog(display);
+		System.out.println(
+			String.format("%-44s %12.1f ms", "wait dialog, first window", (System.nanoTime() - started) / 1e6));
+
+		Harness.measure(
+			"wait dialog",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					showWaitDialog(display);
+				}
+			});
+	}
+
+	/* what UpdateWindow keeps in its shared templating() and texts() */
+	private static void loadWindowResources() {
+		Templating.fromResources().addType(VersionDescriptionBrowser.class, "changelogtable");
+		Texts.fromResources(Locale.ENGLISH);
+	}
+
+	private static void showWaitDialog(final Display display) {
+
+		UpdateWindow window = UpdateWindow.create();
+		window.showState(UpdateWindow.State.WAIT);
+		while (display.readAndDispatch()) {}
+		window.close();
+		while (display.readAndDispatch()) {}
+	}
+
+	/** an empty filter selects everything */
+	private static boolean selected(final String filter, final String group) {
+		return group.startsWith(filter);
+	}
+
+	private static byte[] randomBytes(final int size) {
+
+		byte bytes[] = new byte[size];
+		RANDOM.nextBytes(bytes);
+
+		return bytes;
+	}
+}
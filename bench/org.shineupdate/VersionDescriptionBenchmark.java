@@ -0,0 +1,174 @@
+package bench.org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import java.util.List;
+
+import org.appkit.osdependant.OSUtils;
+
+import org.shineupdate.VersionDescription;
+
+/**
+ * Allocation and time per parse of a version-description: the former parser (read into a String, then split) against
+ * the streaming one, for a silent check (info only) and for showing the changelog.
+ * <p>
+ * <code>java bench.org.shineupdate.VersionDescriptionBenchmark</code>
+ */
+public final class VersionDescriptionBenchmark {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final int SECTIONS = 30;
+	private static final int ITEMS    = 12;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private VersionDescriptionBenchmark() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static void main(final String args[]) throws Exception {
+
+		final File file = File.createTempFile("shineupdate-bench", ".txt");
+		file.deleteOnExit();
+		Files.write(description(SECTIONS, ITEMS), file, Charsets.UTF_8);
+
+		/* same result from both parsers */
+		LegacyDescription legacy	   = parseLegacy(file);
+		VersionDescription versionDesc = VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8));
+		Preconditions.checkState(legacy.version.equals(versionDesc.getVersion()));
+		Preconditions.checkState(legacy.foreWord.equals(versionDesc.getForeWord()));
+		Preconditions.checkState(legacy.sections.size() == versionDesc.getSections().size());
+		for (int i = 0; i < legacy.sections.size(); i++) {
+			Preconditions.checkState(legacy.names.get(i).equals(versionDesc.getSections().get(i).getName()));
+			Preconditions.checkState(legacy.images.get(i).equals(versionDesc.getSections().get(i).getImageURL()));
+			Preconditions.checkState(legacy.sections.get(i).equals(versionDesc.getSections().get(i).getContent()));
+		}
+
+		System.out.println(String.format("description: %d bytes", file.length()));
+		Harness.measure(
+			"legacy, full parse",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					parseLegacy(file);
+				}
+			});
+		Harness.measure(
+			"streaming, info only",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8)).getVersion();
+				}
+			});
+		Harness.measure(
+			"streaming, with changelog",
+			new Harness.Operation() {
+				@Override
+				protected void run() {
+					VersionDescription.parse(Files.newReaderSupplier(file, Charsets.UTF_8)).getSections();
+				}
+			});
+	}
+
+	/** a description with windows line-endings, a patch and <code>sections</code> changelog-sections */
+	static String description(final int sections, final int items) {
+
+		String platform  = OSUtils.getPlatform().toString().toLowerCase();
+		StringBuilder sb = new StringBuilder();
+		sb.append("version: 2.4.1\r\n");
+		sb.append("mandatory: yes\r\n");
+		sb.append(platform).append(": http://example.org/downloads/app-2.4.1.zip\r\n");
+		sb.append(platform).append("_sha1: 9ea80b867eb1118c0b15f5d4d583932f37a95d71\r\n");
+		sb.append(platform).append("_size: 31457280\r\n");
+		sb.append(platform).append("_patch_2.4.0: http://example.org/downloads/app-2.4.0-2.4.1.delta\r\n");
+		sb.append(platform).append("_patch_2.4.0_sha1: 51597aeeacb156518f178d37690024420671c1b9\r\n");
+		sb.append(platform).append("_patch_2.4.0_size: 1048576\r\n");
+		sb.append("\r\n");
+		sb.append("This release brings many improvements, the most important ones are listed below.\r\n");
+		sb.append("Thanks to everyone who reported problems.\r\n");
+		for (int i = 0; i < sections; i++) {
+			sb.append("\r\nSection ").append(i).append(": http://example.org/images/section").append(i).append(".png\r\n");
+			for (int j = 0; j < items; j++) {
+				sb.append("- Item ").append(j).append(" of section ").append(i);
+				sb.append(", describing a change in a sentence or two.\r\n");
+			}
+		}
+
+		return sb.toString();
+	}
+
+	/** the parser before it was streaming, reduced to what is compared */
+	private static LegacyDescription parseLegacy(final File file) {
+		try {
+			Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			try {
+				while (true) {
+
+					char buffer[] = new char[1024];
+					int readChars = reader.read(buffer, 0, 1024);
+					if (readChars == -1) {
+						break;
+					} else {
+						sb.append(buffer, 0, readChars);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+
+			LegacyDescription legacy = new LegacyDescription();
+			String desc				 = sb.toString().replaceAll("(\r\n)", "\n");
+			List<String> sections    = Lists.newArrayList(Splitter.on("\n\n").split(desc));
+			for (final String infoLine : Splitter.on("\n").split(sections.get(0))) {
+				String key   = infoLine.substring(0, infoLine.indexOf(':')).trim().toLowerCase();
+				String value = infoLine.substring(infoLine.indexOf(':') + 1).trim();
+				if (key.equals("version")) {
+					legacy.version = value;
+				}
+			}
+			legacy.foreWord = sections.get(1);
+
+			for (int i = 2; i < sections.size(); i++) {
+				String sectionString = sections.get(i);
+				String line1		 = sectionString.substring(0, sectionString.indexOf("\n"));
+				legacy.names.add(line1.substring(0, line1.indexOf(":")));
+				legacy.images.add(line1.substring(line1.indexOf(":") + 1).trim());
+
+				String str = sectionString.substring(sectionString.indexOf("\n"));
+				legacy.sections.add(
+					ImmutableList.copyOf(Splitter.on("\n- ").trimResults().omitEmptyStrings().split(str)));
+			}
+
+			return legacy;
+
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	private static final class LegacyDescription {
+
+		private String version;
+		private String foreWord;
+		private final List<String> names					   = Lists.newArrayList();
+		private final List<String> images				   = Lists.newArrayList();
+		private final List<ImmutableList<String>> sections = Lists.newArrayList();
+	}
+}
@@ -0,0 +1,194 @@
+package org.shineupdate;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.appkit.concurrent.LoggingThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs silent checks periodically. Every delay gets a random jitter so that a fleet of clients doesn't hit the server
+ * at the same moment, failed checks are repeated with an exponential backoff and the time of the last check is
+ * persisted, so restarting the application doesn't cause an immediate check.
+ * <p>
+ * Checks run on the executor of {@link ShineUpdate}, a check whose changelog waits for the user doesn't hold up the
+ * schedule. While it waits, the checks that are due are skipped.
+ */
+public final class CheckScheduler {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L			   = LoggerFactory.getLogger(CheckScheduler.class);
+	private static final String KEY_LAST_CHECK = "lastcheck";
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final ScheduledExecutorService scheduler =
+		Executors.newSingleThreadScheduledExecutor(LoggingThreadFactory.create());
+	private final Random random = new Random();
+	private final long period;
+	private final ImmutableList<MaintenanceWindow> windows;
+	private ScheduledFuture<?> next;
+	private int failures	 = 0;
+	private boolean checking = false;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private CheckScheduler(final long period, final ImmutableList<MaintenanceWindow> windows) {
+		this.period		 = period;
+		this.windows     = windows;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @param windows checks only run within one of these, an empty list allows checks at any time
+	 */
+	public static CheckScheduler start(final long period, final TimeUnit timeUnit,
+									   final ImmutableList<MaintenanceWindow> windows) {
+
+		CheckScheduler checkScheduler = new CheckScheduler(timeUnit.toMillis(period), windows);
+
+		/* continue the previous schedule if the application was restarted */
+		long lastCheck = ShineUpdate.instance().prefStore.get(KEY_LAST_CHECK, 0L);
+		long sinceLast = System.currentTimeMillis() - lastCheck;
+		long delay     = ((sinceLast >= 0) && (sinceLast < checkScheduler.period)) ? (checkScheduler.period - sinceLast) : 0;
+		checkScheduler.schedule(delay);
+
+		return checkScheduler;
+	}
+
+	public synchronized void stop() {
+		if (this.next != null) {
+			this.next.cancel(false);
+		}
+		this.scheduler.shutdown();
+	}
+
+	/** @return <code>delay</code> plus a random part of up to {@link StaticConfig#CHECK_JITTER} of the period */
+	public static long jitter(final long delay, final long period, final Random random) {
+		return delay + (long) (random.nextDouble() * period * StaticConfig.CHECK_JITTER);
+	}
+
+	/** @return the delay after <code>failures</code> failed checks in a row, doubling up to the period */
+	public static long backoff(final int failures, final long period) {
+		return Math.min(StaticConfig.CHECK_RETRY_DELAY << Math.min(failures - 1, 20), period);
+	}
+
+	private synchronized void schedule(final long delay) {
+		if (this.scheduler.isShutdown()) {
+			return;
+		}
+		if (this.next != null) {
+			this.next.cancel(false);
+		}
+
+		long jittered = jitter(delay, this.period, this.random);
+		L.debug("next background check in {} s", TimeUnit.MILLISECONDS.toSeconds(jittered));
+
+		this.next = this.scheduler.schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						runCheck();
+					}
+				},
+				jittered,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void runCheck() {
+
+		/* wait for the next maintenance window */
+		long untilOpen = this.millisUntilOpen();
+		if (untilOpen > 0) {
+			L.debug("outside of maintenance windows, waiting {} s", TimeUnit.MILLISECONDS.toSeconds(untilOpen));
+			this.schedule(untilOpen);
+			return;
+		}
+
+		synchronized (this) {
+			if (this.checking) {
+				L.debug("previous background check hasn't finished, skipping this one");
+				this.schedule(this.period);
+				return;
+			}
+			this.checking = true;
+		}
+
+		/* a download started in the background stops when the window closes */
+		long untilClose = this.millisUntilClose();
+		final long deadline =
+			(untilClose == Long.MAX_VALUE) ? Long.MAX_VALUE : (System.currentTimeMillis() + untilClose);
+
+		ShineUpdate.instance().executor.execute(
+			new Runnable() {
+					@Override
+					public void run() {
+						boolean succeeded = false;
+						try {
+							succeeded = ShineUpdate.instance().check(false, deadline);
+						} catch (final RuntimeException e) {
+							L.error(e.getMessage(), e);
+						} finally {
+							finished(succeeded);
+						}
+					}
+				});
+
+		/* replaced once the check has finished, unless it waits for the user that long */
+		this.schedule(this.period);
+	}
+
+	private synchronized void finished(final boolean succeeded) {
+		this.checking = false;
+
+		if (succeeded) {
+			this.failures = 0;
+			ShineUpdate.instance().prefStore.store(KEY_LAST_CHECK, System.currentTimeMillis());
+			this.schedule(this.period);
+
+		} else {
+			this.failures++;
+			L.debug("background check failed {} time(s), backing off", this.failures);
+			this.schedule(backoff(this.failures, this.period));
+		}
+	}
+
+	private long millisUntilOpen() {
+		if (this.windows.isEmpty()) {
+			return 0;
+		}
+
+		Calendar now = Calendar.getInstance();
+		long wait    = Long.MAX_VALUE;
+		for (final MaintenanceWindow window : this.windows) {
+			wait = Math.min(wait, window.millisUntilOpen(now));
+		}
+
+		return wait;
+	}
+
+	/* the latest close of the windows that are open now */
+	private long millisUntilClose() {
+		if (this.windows.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+
+		Calendar now = Calendar.getInstance();
+		long open    = 0;
+		for (final MaintenanceWindow window : this.windows) {
+			open = Math.max(open, window.millisUntilClose(now));
+		}
+
+		return open;
+	}
+}
@@ -0,0 +1,325 @@
+package org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary delta between two versions of a download.
+ * <p>
+ * A patch is a gzip-compressed stream: the header <code>SUDELTA1</code> and the length of the new file, followed by
+ * operations that either copy a range of the old file (<code>COPY offset length</code>) or insert literal bytes
+ * (<code>DATA length bytes</code>) and finally <code>END</code>. Patches are created with
+ * <code>java org.shineupdate.DeltaPatch &lt;old&gt; &lt;new&gt; &lt;patch&gt;</code>.
+ */
+public final class DeltaPatch {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		  = LoggerFactory.getLogger(DeltaPatch.class);
+	private static final byte[] MAGIC     = "SUDELTA1".getBytes(Charsets.US_ASCII);
+	private static final int OP_COPY	  = 0;
+	private static final int OP_DATA	  = 1;
+	private static final int OP_END		  = 2;
+	private static final int BLOCK_SIZE   = 512;
+	private static final int BUFFER_SIZE  = 1024*64;
+	private static final long WINDOW_SIZE = 1024*1024*64;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private DeltaPatch() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Rebuilds the new file from the old one and the patch.
+	 *
+	 * @return the digest of the new file, computed while writing it
+	 */
+	public static HashCode apply(final File oldFile, final File patchFile, final File newFile,
+								 final HashFunction hashFunction)
+						  throws IOException {
+		L.debug("applying patch '{}' to '{}'", patchFile, oldFile);
+
+		DataInputStream patch = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(new FileInputStream(patchFile), BUFFER_SIZE)));
+		RandomAccessFile old  = new RandomAccessFile(oldFile, "r");
+		DataOutputStream out  = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE));
+		try {
+			byte magic[] = new byte[MAGIC.length];
+			patch.readFully(magic);
+			if (! Arrays.equals(magic, MAGIC)) {
+				throw new IOException("not a patch: '" + patchFile + "'");
+			}
+
+			long newLength			  = patch.readLong();
+			long written			  = 0;
+			byte buffer[]			  = new byte[BUFFER_SIZE];
+			Hasher hasher			  = hashFunction.newHasher();
+			ResourceGovernor governor = ResourceGovernor.current();
+			while (true) {
+
+				int op = patch.readUnsignedByte();
+				if (op == OP_END) {
+					break;
+
+				} else if (op == OP_COPY) {
+					long offset = patch.readLong();
+					int length  = patch.readInt();
+					if ((offset < 0) || ((offset + length) > old.length())) {
+						throw new IOException("patch doesn't fit '" + oldFile + "'");
+					}
+
+					old.seek(offset);
+					while (length > 0) {
+						int count = Math.min(length, buffer.length);
+						old.readFully(buffer, 0, count);
+						out.write(buffer, 0, count);
+						hasher.putBytes(buffer, 0, count);
+						governor.acquireDisk(count);
+						written = written + count;
+						length  = length - count;
+					}
+
+				} else if (op == OP_DATA) {
+					int length = patch.readInt();
+					while (length > 0) {
+						int count = Math.min(length, buffer.length);
+						patch.readFully(buffer, 0, count);
+						out.write(buffer, 0, count);
+						hasher.putBytes(buffer, 0, count);
+						governor.acquireDisk(count);
+						written = written + count;
+						length  = length - count;
+					}
+
+				} else {
+					throw new IOException("corrupt patch, unknown operation " + op);
+				}
+			}
+
+			/* counted here, DataOutputStream.size() stops at 2 GB */
+			if (written != newLength) {
+				throw new IOException("patch produced " + written + " instead of " + newLength + " bytes");
+			}
+
+			return hasher.hash();
+
+		} finally {
+			patch.close();
+			old.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates a patch by looking up every block-sized window of the new file among the blocks of the old file. Built
+	 * for archives that keep unchanged entries byte-for-byte, both files are read through windows mapped into memory,
+	 * so they may be larger than a single mapping.
+	 */
+	public static void create(final File oldFile, final File newFile, final File patchFile)
+					   throws IOException {
+
+		RandomAccessFile oldRaf = new RandomAccessFile(oldFile, "r");
+		RandomAccessFile newRaf = new RandomAccessFile(newFile, "r");
+		DataOutputStream out    = new DataOutputStream(
+				new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(patchFile), BUFFER_SIZE)));
+		try {
+			MappedWindow oldBytes = new MappedWindow(oldRaf.getChannel());
+			MappedWindow newBytes = new MappedWindow(newRaf.getChannel());
+			long oldLength		  = oldBytes.length;
+			long newLength		  = newBytes.length;
+
+			/* index the old file's blocks by their weak checksum */
+			Map<Integer, Long> blocks = Maps.newHashMap();
+			for (long offset = 0; (offset + BLOCK_SIZE) <= oldLength; offset += BLOCK_SIZE) {
+				int checksum = checksum(oldBytes, offset);
+				if (! blocks.containsKey(checksum)) {
+					blocks.put(checksum, offset);
+				}
+			}
+
+			out.write(MAGIC);
+			out.writeLong(newLength);
+
+			long literalStart = 0;
+			long pos		  = 0;
+			int a			  = 0;
+			int b			  = 0;
+			boolean rolling   = false;
+			while ((pos + BLOCK_SIZE) <= newLength) {
+
+				/* rsync-style rolling checksum over the window [pos, pos + BLOCK_SIZE) */
+				if (! rolling) {
+					a = 0;
+					b = 0;
+					for (int i = 0; i < BLOCK_SIZE; i++) {
+						int value = newBytes.get(pos + i) & 0xff;
+						a = a + value;
+						b = b + ((BLOCK_SIZE - i) * value);
+					}
+					rolling = true;
+				}
+
+				Long match = blocks.get(((b & 0xffff) << 16) | (a & 0xffff));
+				if ((match != null) && regionEquals(oldBytes, match, newBytes, pos, BLOCK_SIZE)) {
+
+					/* extend the match as far as the files agree and a COPY can tell */
+					int length = BLOCK_SIZE;
+					while (((match + length) < oldLength) && ((pos + length) < newLength)
+							   && (length < Integer.MAX_VALUE)
+							   && (oldBytes.get(match + length) == newBytes.get(pos + length))) {
+						length++;
+					}
+
+					writeData(out, newBytes, literalStart, pos);
+					out.writeByte(OP_COPY);
+					out.writeLong(match);
+					out.writeInt(length);
+
+					pos			     = pos + length;
+					literalStart     = pos;
+					rolling		     = false;
+
+				} else {
+					if ((pos + BLOCK_SIZE) < newLength) {
+						int outgoing = newBytes.get(pos) & 0xff;
+						int incoming = newBytes.get(pos + BLOCK_SIZE) & 0xff;
+						a		     = (a - outgoing) + incoming;
+						b		     = (b - (BLOCK_SIZE * outgoing)) + a;
+					}
+					pos++;
+
+					/* written as it goes, so the window doesn't have to move back for it */
+					if ((pos - literalStart) == BUFFER_SIZE) {
+						writeData(out, newBytes, literalStart, pos);
+						literalStart = pos;
+					}
+				}
+			}
+
+			writeData(out, newBytes, literalStart, newLength);
+			out.writeByte(OP_END);
+
+		} finally {
+			oldRaf.close();
+			newRaf.close();
+			out.close();
+		}
+	}
+
+	public static void main(final String args[]) {
+		try {
+			Preconditions.checkArgument(args.length == 3, "Usage: <old> <new> <patch>");
+			create(new File(args[0]), new File(args[1]), new File(args[2]));
+
+		} catch (final IOException e) {
+			L.error(e.getMessage(), e);
+			System.exit(1);
+		} catch (final RuntimeException e) {
+			L.error(e.getMessage(), e);
+			System.exit(1);
+		}
+	}
+
+	private static int checksum(final MappedWindow bytes, final long offset) throws IOException {
+
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			int value = bytes.get(offset + i) & 0xff;
+			a = a + value;
+			b = b + ((BLOCK_SIZE - i) * value);
+		}
+
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+	}
+
+	private static boolean regionEquals(final MappedWindow first, final long firstOffset, final MappedWindow second,
+										final long secondOffset, final int length)
+								 throws IOException {
+		for (int i = 0; i < length; i++) {
+			if (first.get(firstOffset + i) != second.get(secondOffset + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void writeData(final DataOutputStream out, final MappedWindow bytes, final long from,
+								  final long to) throws IOException {
+
+		byte buffer[] = new byte[BUFFER_SIZE];
+		for (long start = from; start < to; start += BUFFER_SIZE) {
+			int length = (int) Math.min(BUFFER_SIZE, to - start);
+			for (int i = 0; i < length; i++) {
+				buffer[i] = bytes.get(start + i);
+			}
+
+			out.writeByte(OP_DATA);
+			out.writeInt(length);
+			out.write(buffer, 0, length);
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	/** a part of a file mapped into memory, moved when a position outside of it is read */
+	private static final class MappedWindow {
+
+		private final FileChannel channel;
+		private final long length;
+		private MappedByteBuffer buffer;
+		private long start;
+		private long end;
+
+		private MappedWindow(final FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.length  = channel.size();
+		}
+
+		private byte get(final long position) throws IOException {
+			if ((position < this.start) || (position >= this.end)) {
+				this.move(position);
+			}
+
+			return this.buffer.get((int) (position - this.start));
+		}
+
+		/* reads mostly go forward, with a look back at the pending literal bytes */
+		private void move(final long position) throws IOException {
+			if ((position < 0) || (position >= this.length)) {
+				throw new IndexOutOfBoundsException(position + " of " + this.length);
+			}
+
+			this.start  = Math.max(0, position - (WINDOW_SIZE / 4));
+			this.end    = Math.min(this.length, this.start + WINDOW_SIZE);
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.start, this.end - this.start);
+		}
+	}
+}
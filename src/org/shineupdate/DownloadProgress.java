@@ -0,0 +1,102 @@
+package org.shineupdate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a running download, also used for extracting it.
+ * <p>
+ * Downloading threads only add to a counter, readers sample it at their own pace (the UpdateWindow once per frame).
+ * Throughput is smoothed over the samples, so it is only available to the one thread that calls {@link #sample()}.
+ */
+public final class DownloadProgress {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final double SMOOTHING = 0.3;
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final AtomicLong completed = new AtomicLong();
+	private volatile long total;
+	private volatile long lastAdvance  = System.nanoTime();
+
+	/* sampling thread only */
+	private long sampleTime;
+	private long sampleBytes;
+	private double bytesPerSecond;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private DownloadProgress() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static DownloadProgress create() {
+		return new DownloadProgress();
+	}
+
+	/** (re)starts with <code>completed</code> of <code>total</code> bytes already there */
+	protected void start(final long total, final long completed) {
+		this.total		 = total;
+		this.completed.set(completed);
+		this.lastAdvance = System.nanoTime();
+	}
+
+	/** called for every chunk, doesn't allocate */
+	protected void add(final int count) {
+		this.completed.addAndGet(count);
+		this.lastAdvance = System.nanoTime();
+	}
+
+	public long getTotal() {
+		return this.total;
+	}
+
+	public long getCompleted() {
+		return this.completed.get();
+	}
+
+	/** updates the throughput, to be called periodically from one thread */
+	public void sample() {
+
+		long now   = System.nanoTime();
+		long bytes = this.completed.get();
+
+		/* a restarted download begins a new measurement */
+		if ((this.sampleTime != 0) && (bytes >= this.sampleBytes) && (now > this.sampleTime)) {
+
+			double current = (bytes - this.sampleBytes) / ((now - this.sampleTime) / (double) TimeUnit.SECONDS.toNanos(1));
+			if (this.bytesPerSecond == 0) {
+				this.bytesPerSecond = current;
+			} else {
+				this.bytesPerSecond = ((1 - SMOOTHING) * this.bytesPerSecond) + (SMOOTHING * current);
+			}
+		}
+
+		this.sampleTime  = now;
+		this.sampleBytes = bytes;
+	}
+
+	/** smoothed throughput as of the last {@link #sample()} */
+	public long getBytesPerSecond() {
+		return (long) this.bytesPerSecond;
+	}
+
+	/** @return -1 if unknown */
+	public long getSecondsRemaining() {
+
+		long remaining = this.total - this.completed.get();
+		if ((this.bytesPerSecond < 1) || (this.total <= 0) || (remaining < 0)) {
+			return -1;
+		}
+
+		return (long) Math.ceil(remaining / this.bytesPerSecond);
+	}
+
+	/** no bytes arrived for {@link StaticConfig#STALL_TIMEOUT} ms while there is still something to download */
+	public boolean isStalled() {
+		return (this.completed.get() < this.total)
+			   && ((System.nanoTime() - this.lastAdvance) > TimeUnit.MILLISECONDS.toNanos(StaticConfig.STALL_TIMEOUT));
+	}
+}
@@ -1,22 +1,55 @@
 package org.shineupdate;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.Reader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 
-import java.net.URL;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.appkit.concurrent.ReportQueue;
 
+import org.shineupdate.MetricsListener.Phase;
+import org.shineupdate.VersionDescription.Patch;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,16 +57,44 @@ public final class Downloader {
 
 	//~ Enumerations ---------------------------------------------------------------------------------------------------
 
-	public enum Status {VERSION, PROGRESS, DOWNLOADED_FILE, ERROR;
+	/**
+	 * PROGRESS is reported once per download and carries the {@link DownloadProgress}, DOWNLOADED_FILE carries the
+	 * file, its digest and, if it was extracted while downloading, the staged tree. CANCELLED is reported once the
+	 * download has stopped after {@link Downloader#stopDownload()}
+	 */
+	public enum Status {VERSION, PROGRESS, DOWNLOADED_FILE, CANCELLED, ERROR;
 	}
 
 	//~ Static fields/initializers -------------------------------------------------------------------------------------
 
-	private static final Logger L = LoggerFactory.getLogger(Downloader.class);
+	private static final Logger L				 = LoggerFactory.getLogger(Downloader.class);
+	private static final String PART_SUFFIX		 = ".part";
+	private static final String COMPLETE_SUFFIX  = ".download";
+	private static final String SEGMENTS_SUFFIX  = ".segments";
+	private static final String PATCHED_SUFFIX   = ".patched";
+	private static final String STAGING_SUFFIX   = ".staging";
+	private static final String BASE_PREFIX	     = "installed-";
+	private static final String PENDING_PREFIX   = "installing-";
+	private static final String VALIDATOR_PREFIX = "download_validator_";
+	private static final String SEGMENTS_PREFIX  = "download_segments_";
+	private static final Pattern CONTENT_RANGE   = Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
+
+	/* downloads running in this process, by hash */
+	private static final Map<String, SettableFuture<Object[]>> RUNNING = Maps.newHashMap();
 
 	//~ Instance fields ------------------------------------------------------------------------------------------------
 
-	private final ReportQueue queue = ReportQueue.create();
+	private final ReportQueue queue			  = ReportQueue.create();
+	private final DownloadProgress progress = DownloadProgress.create();
+
+	/* bytes that came over the network, for the metrics */
+	private final AtomicLong received = new AtomicLong();
+
+	/* threads and connections of the running download, guarded by workers */
+	private final Set<Thread> workers			   = Sets.newHashSet();
+	private final Set<HttpURLConnection> connections = Sets.newHashSet();
+	private volatile boolean cancelled			   = false;
+	private volatile int readTimeout			   = StaticConfig.READ_TIMEOUT;
 
 	//~ Constructors ---------------------------------------------------------------------------------------------------
 
@@ -45,6 +106,11 @@ public final class Downloader {
 		return this.queue;
 	}
 
+	/** sampled by the UI instead of a report per chunk */
+	public DownloadProgress getProgress() {
+		return this.progress;
+	}
+
 	public static Downloader create() {
 		return new Downloader();
 	}
@@ -56,94 +122,1138 @@ public final class Downloader {
 					public void run() {
 						L.debug("downloading description from '{}'", url);
 
-						Reader reader = null;
+						MetricsListener metrics = ShineUpdate.instance().metrics;
+						long started		    = System.nanoTime();
 						try {
-							reader = new BufferedReader(
-									new InputStreamReader(new URL(url).openStream(), Charsets.UTF_8));
 
-							/** read file from url **/
-							StringBuilder sb = new StringBuilder();
-							while (true) {
-
-								char buffer[] = new char[1024];
-								int readChars = reader.read(buffer, 0, 1024);
-								if (readChars == -1) {
-									break;
-								} else {
-									sb.append(buffer, 0, readChars);
-								}
-							}
-							reader.close();
-
-							/** parse into VersionDescription */
-							queue.report(Status.VERSION, VersionDescription.parse(sb.toString()));
+							/* only the info-section is read now, the changelog once it is shown */
+							File description			   = ManifestCache.fetch(url);
+							VersionDescription versionDesc =
+								VersionDescription.parse(Files.newReaderSupplier(description, Charsets.UTF_8));
+							metrics.completed(Phase.MANIFEST, millisSince(started), description.length());
+							queue.report(Status.VERSION, versionDesc);
 
 						} catch (final IOException e) {
 							L.error(e.getMessage(), e);
+							metrics.failed(Phase.MANIFEST, millisSince(started));
 							queue.report(Status.ERROR);
 
 						} catch (final RuntimeException e) {
 							L.error(e.getMessage(), e);
+							metrics.failed(Phase.MANIFEST, millisSince(started));
 							queue.report(Status.ERROR);
-
-						} finally {
-							if (reader != null) {
-								try {
-									reader.close();
-								} catch (final IOException e) {}
-							}
 						}
 					}
 				});
 	}
 
-	public void stopDownload() {}
+	/**
+	 * Cancels the running download. Its threads are interrupted and its connections are closed, which ends the
+	 * reads that block on them. Whether the partial download is kept for resuming depends on
+	 * {@link StaticConfig#KEEP_CANCELLED_DOWNLOADS}. CANCELLED is reported once all threads have left.
+	 */
+	public void stopDownload() {
+		synchronized (workers) {
+			L.debug("cancelling download, interrupting {} thread(s)", workers.size());
+			this.cancelled = true;
+			for (final Thread worker : workers) {
+				worker.interrupt();
+			}
+			for (final HttpURLConnection conn : connections) {
+				conn.disconnect();
+			}
+		}
+	}
+
+	/** read file from url, continuing a partial download of the same payload if there is one **/
+	public void loadUpdate(final VersionDescription versionDesc) {
+
+		/* a download that was stopped before, e.g. at the end of a maintenance window, can be started again */
+		synchronized (workers) {
+			this.cancelled = false;
+		}
 
-	/** read file from url **/
-	public void loadUpdate(final String url, final int totalSize) {
 		ShineUpdate.instance().executor.execute(
 			new Runnable() {
 					@Override
 					public void run() {
-
-						InputStream in   = null;
-						OutputStream out = null;
+						enter();
+						Object downloaded[] = null;
+						Exception failure   = null;
 						try {
+							downloaded = download(versionDesc);
 
-							File downloadTempFile = File.createTempFile(StaticConfig.TEMP_FILE_PREFIX, null);
+						} catch (final IOException | InterruptedException | RuntimeException e) {
+							failure = e;
 
-							in	    = new BufferedInputStream(new URL(url).openStream());
-							out = new BufferedOutputStream(new FileOutputStream(downloadTempFile));
+						} finally {
+							leave();
+
+							/* decided once and under the lock of stopDownload(), so only one of them is reported */
+							synchronized (workers) {
+								if (cancelled) {
+									L.debug("download cancelled");
+									queue.report(Status.CANCELLED);
 
-							byte data[]  = new byte[StaticConfig.DOWNLOAD_BUFFER_SIZE];
-							int progress = 0;
-							int count;
-							while ((count = in.read(data, 0, StaticConfig.DOWNLOAD_BUFFER_SIZE)) != -1) {
-								out.write(data, 0, count);
-								progress = progress + count;
+								} else if (downloaded != null) {
+									queue.report(Status.DOWNLOADED_FILE, downloaded);
 
-								queue.report(Status.PROGRESS, totalSize, progress);
+								} else {
+									if (failure != null) {
+										L.error(failure.getMessage(), failure);
+									}
+									queue.report(Status.ERROR);
+								}
 							}
+						}
+					}
+				});
+	}
 
-							queue.report(Status.DOWNLOADED_FILE, downloadTempFile);
+	/** registers the calling thread as part of the download, so it can be interrupted */
+	private void enter() {
+		synchronized (workers) {
+			workers.add(Thread.currentThread());
+			if (this.cancelled) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-						} catch (final IOException e) {
-							L.error(e.getMessage(), e);
-							queue.report(Status.ERROR);
+	private void leave() {
+		synchronized (workers) {
+			workers.remove(Thread.currentThread());
 
-						} finally {
-							if (in != null) {
-								try {
-									in.close();
-								} catch (final IOException e) {}
-							}
-							if (out != null) {
+			/* don't leave the interrupt to the next task of the pooled thread */
+			Thread.interrupted();
+		}
+	}
+
+	private void track(final HttpURLConnection conn) throws InterruptedIOException {
+		synchronized (workers) {
+			if (this.cancelled) {
+				throw new InterruptedIOException("download cancelled");
+			}
+			connections.add(conn);
+		}
+	}
+
+	private void untrack(final URLConnection conn) {
+		synchronized (workers) {
+			connections.remove(conn);
+		}
+	}
+
+	private static void discardPartialDownload(final String hash) {
+		File cacheDir = ShineUpdate.instance().cacheDir;
+		new File(cacheDir, hash + PART_SUFFIX).delete();
+		new File(cacheDir, hash + SEGMENTS_SUFFIX).delete();
+		ShineUpdate.instance().prefStore.remove(VALIDATOR_PREFIX + hash);
+		ShineUpdate.instance().prefStore.remove(SEGMENTS_PREFIX + hash);
+	}
+
+	/**
+	 * Downloads the payload together with its digest, computed while downloading. If the description offers a patch
+	 * for the running version and its archive is still around, the payload is rebuilt from the patch instead.
+	 *
+	 * @return the data of the DOWNLOADED_FILE report
+	 */
+	private Object[] download(final VersionDescription versionDesc)
+				   throws IOException, InterruptedException {
+
+		String hash		    = versionDesc.getDownloadHash();
+		HashFunction digest = versionDesc.getDownloadHashFunction();
+		Preconditions.checkState(hash != null, "[version-description] no hash for '%s'", versionDesc.getDownloadURL());
+
+		File cacheDir	  = ShineUpdate.instance().cacheDir;
+		File completeFile = new File(cacheDir, hash + COMPLETE_SUFFIX);
+		File baseFile	  = baseArchive(ShineUpdate.instance().currentVersion);
+		Patch patch		  = versionDesc.getPatch(ShineUpdate.instance().currentVersion);
+		if ((patch != null) && ((patch.getSHA1Hash() == null) || ! baseFile.isFile())) {
+			patch = null;
+		}
+
+		removeStaleDownloads(cacheDir, hash, (patch != null) ? patch.getSHA1Hash() : hash);
+
+		/* finished in an earlier run, verification is up to the Updater */
+		if (completeFile.isFile()) {
+			L.debug("payload already downloaded: '{}'", completeFile);
+			progress.start(completeFile.length(), completeFile.length());
+			queue.report(Status.PROGRESS, progress);
+
+			long started = System.nanoTime();
+			String fileHash = FileHelper.getHash(completeFile, digest);
+			ShineUpdate.instance().metrics.completed(Phase.HASH, millisSince(started), completeFile.length());
+			return new Object[] { completeFile, fileHash };
+		}
+
+		queue.report(Status.PROGRESS, progress);
+
+		/* a file-lock is held by the JVM, so within this process a second download of the payload joins the first */
+		SettableFuture<Object[]> running;
+		SettableFuture<Object[]> own = SettableFuture.create();
+		synchronized (RUNNING) {
+			running = RUNNING.get(hash);
+			if (running == null) {
+				RUNNING.put(hash, own);
+			}
+		}
+
+		if (running != null) {
+			L.debug("payload {} is already being downloaded, waiting for it", hash);
+			try {
+
+				/* the tree extracted while downloading belongs to the first one */
+				Object downloaded[] = running.get();
+				return new Object[] { downloaded[0], downloaded[1] };
+			} catch (final ExecutionException e) {
+
+				/* failed or cancelled there, this one tries on its own */
+				return this.download(versionDesc);
+			}
+		}
+
+		Object downloaded[] = null;
+		try {
+			downloaded = this.fetchShared(versionDesc, patch, completeFile);
+			return downloaded;
+		} finally {
+			synchronized (RUNNING) {
+
+				/* here, a download that joined this one must not discard it */
+				if (this.cancelled && ! StaticConfig.KEEP_CANCELLED_DOWNLOADS) {
+					discardPartialDownload(hash);
+				}
+				RUNNING.remove(hash);
+			}
+			if (downloaded != null) {
+				own.set(downloaded);
+			} else {
+				own.setException(new IOException("download of " + hash + " failed"));
+			}
+		}
+	}
+
+	/**
+	 * Copies the payload from the shared cache or downloads it and publishes it there.
+	 *
+	 * @return the data of the DOWNLOADED_FILE report
+	 */
+	private Object[] fetchShared(final VersionDescription versionDesc, final Patch patch, final File completeFile)
+					   throws IOException, InterruptedException {
+
+		String hash		    = versionDesc.getDownloadHash();
+		HashFunction digest = versionDesc.getDownloadHashFunction();
+
+		/* one process per host or site downloads, the others wait for it and copy the payload */
+		SharedCache shared = SharedCache.lock(hash);
+		try {
+			HashCode sharedHash = (shared != null) ? shared.copyTo(completeFile, digest, progress) : null;
+			if ((sharedHash != null) && sharedHash.toString().equalsIgnoreCase(hash)) {
+				return new Object[] { completeFile, sharedHash.toString() };
+			}
+
+			/* a corrupt shared payload would be copied again by every check, it is replaced from the origin */
+			if (sharedHash != null) {
+				shared.discard();
+				completeFile.delete();
+			}
+			return this.fetchPayload(versionDesc, patch, completeFile, shared);
+		} finally {
+			if (shared != null) {
+				shared.release();
+			}
+		}
+	}
+
+	/**
+	 * Downloads the patch or the whole payload, a verified payload is published to <code>shared</code>.
+	 *
+	 * @return the data of the DOWNLOADED_FILE report
+	 */
+	private Object[] fetchPayload(final VersionDescription versionDesc, final Patch patch, final File completeFile,
+							  final SharedCache shared)
+					   throws IOException, InterruptedException {
+
+		String hash		    = versionDesc.getDownloadHash();
+		HashFunction digest = versionDesc.getDownloadHashFunction();
+		File cacheDir	    = ShineUpdate.instance().cacheDir;
+
+		/* patch against the archive of the running version, anything unexpected falls back to the full download */
+		if (patch != null) {
+			L.debug("downloading patch from {} to {}", ShineUpdate.instance().currentVersion, versionDesc.getVersion());
+
+			File patchFile   = new File(cacheDir, patch.getSHA1Hash() + COMPLETE_SUFFIX);
+			File patchedFile = new File(cacheDir, hash + PATCHED_SUFFIX);
+			try {
+				HashCode patchHash =
+					fetch(ImmutableList.of(patch.getURL()), patch.getSHA1Hash(), Hashing.sha1(), patch.getSize(), null);
+				if (! patchHash.toString().equalsIgnoreCase(patch.getSHA1Hash())) {
+					throw new IOException("hash of patch doesn't match: " + patchHash);
+				}
+
+				HashCode patchedHash =
+					DeltaPatch.apply(baseArchive(ShineUpdate.instance().currentVersion), patchFile, patchedFile, digest);
+				if (! patchedHash.toString().equalsIgnoreCase(hash)) {
+					throw new IOException("patched download doesn't match: " + patchedHash);
+				}
+
+				Preconditions.checkState(
+					patchedFile.renameTo(completeFile),
+					"could not rename '%s' to '%s'",
+					patchedFile,
+					completeFile);
+				if (shared != null) {
+					shared.publish(completeFile);
+				}
+				return new Object[] { completeFile, patchedHash.toString() };
+
+			} catch (final IOException e) {
+				L.warn("patching failed, downloading the complete update: {}", e.getMessage());
+
+			} finally {
+				patchFile.delete();
+				patchedFile.delete();
+			}
+		}
+
+		/*
+		 * the archive is extracted while it arrives, the tree is only used if the digest matches. That needs the bytes
+		 * in order, so it only happens if the payload comes over a single connection
+		 */
+		StreamingExtractor extractor = null;
+		if (StaticConfig.EXTRACT_WHILE_DOWNLOADING) {
+			extractor = StreamingExtractor.create(new File(cacheDir, hash + STAGING_SUFFIX));
+		}
+
+		try {
+			HashCode downloadHash = fetch(
+					MirrorProbe.rank(versionDesc.getDownloadURLs()),
+					hash,
+					digest,
+					versionDesc.getDownloadSize(),
+					extractor);
+
+			File stagingDir = (extractor != null) ? extractor.finish(completeFile) : null;
+			if ((shared != null) && downloadHash.toString().equalsIgnoreCase(hash)) {
+				shared.publish(completeFile);
+			}
+			if (stagingDir != null) {
+				return new Object[] { completeFile, downloadHash.toString(), stagingDir };
+			}
+
+			return new Object[] { completeFile, downloadHash.toString() };
+
+		} finally {
+			if (extractor != null) {
+				extractor.abort();
+			}
+		}
+	}
+
+	/**
+	 * Keeps a download that is about to be installed. It only becomes the base for patches once the application
+	 * runs as <code>version</code> (see {@link #adoptRetained()}), until then the archive of the running version stays.
+	 */
+	public static void retainForPatching(final File downloadedFile, final String version) {
+
+		deleteRetained(PENDING_PREFIX);
+
+		File pendingFile = new File(ShineUpdate.instance().cacheDir, PENDING_PREFIX + version);
+		if (! downloadedFile.renameTo(pendingFile)) {
+			L.warn("could not keep '{}' for patching", downloadedFile);
+		}
+	}
+
+	/**
+	 * Replaces the base for patches with the archive kept by {@link #retainForPatching(File, String)} once its
+	 * version is running. An archive of a version that isn't running was never installed and is removed.
+	 */
+	public static void adoptRetained() {
+
+		String version   = ShineUpdate.instance().currentVersion;
+		File pendingFile = new File(ShineUpdate.instance().cacheDir, PENDING_PREFIX + version);
+		if (pendingFile.isFile()) {
+			deleteRetained(BASE_PREFIX);
+
+			File baseFile = baseArchive(version);
+			if (pendingFile.renameTo(baseFile)) {
+				L.debug("keeping '{}' for patching", baseFile);
+			} else {
+				L.warn("could not keep '{}' for patching", pendingFile);
+			}
+		}
+
+		deleteRetained(PENDING_PREFIX);
+	}
+
+	private static void deleteRetained(final String prefix) {
+
+		File files[] = ShineUpdate.instance().cacheDir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (file.getName().startsWith(prefix)) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/** where a payload is kept once it has been downloaded completely */
+	static File completedDownload(final String hash) {
+		return new File(ShineUpdate.instance().cacheDir, hash + COMPLETE_SUFFIX);
+	}
+
+	private static File baseArchive(final String version) {
+		return new File(ShineUpdate.instance().cacheDir, BASE_PREFIX + version);
+	}
+
+	/**
+	 * Downloads the payload to <code>&lt;hash&gt;.download</code> in the cache-directory. A failed or stalled transfer
+	 * continues from the next mirror, where the previous one stopped.
+	 *
+	 * @param urls the mirrors to download from, in the order they are tried
+	 * @param extractor if not null, gets the bytes in order if they come over a single connection; a segmented
+	 *                  download leaves it unused and the archive is extracted afterwards
+	 * @return the digest of the downloaded file
+	 */
+	private HashCode fetch(final List<String> urls, final String hash, final HashFunction digest, final int totalSize,
+						   final StreamingExtractor extractor)
+					throws IOException, InterruptedException {
+
+		/* with a mirror to fall back to, a stall isn't waited out */
+		this.readTimeout = (urls.size() > 1) ? StaticConfig.STALL_TIMEOUT : StaticConfig.READ_TIMEOUT;
+
+		File cacheDir	  = ShineUpdate.instance().cacheDir;
+		File partFile	  = new File(cacheDir, hash + PART_SUFFIX);
+		File segmentsFile = new File(cacheDir, hash + SEGMENTS_SUFFIX);
+		File completeFile = new File(cacheDir, hash + COMPLETE_SUFFIX);
+
+		/* only what comes over the network now, bytes kept from an earlier attempt don't count */
+		long started		= System.nanoTime();
+		long receivedBefore = this.received.get();
+
+		/* several connections for large payloads, unless a single-stream download is already under way */
+		File downloadedFile   = null;
+		HashCode downloadHash = null;
+		if ((ShineUpdate.instance().governor.threads(StaticConfig.DOWNLOAD_CONNECTIONS) > 1)
+				&& (totalSize >= StaticConfig.DOWNLOAD_SEGMENT_MIN_SIZE) && ! partFile.exists()) {
+			if (transferSegmented(urls, hash, segmentsFile, totalSize)) {
+				downloadedFile = segmentsFile;
+				ShineUpdate.instance().metrics.completed(
+					Phase.DOWNLOAD,
+					millisSince(started),
+					this.received.get() - receivedBefore);
+
+				/* ranges arrive out of order, so they are hashed once they are all on disk */
+				long hashStarted = System.nanoTime();
+				downloadHash	 = FileHelper.hash(segmentsFile, digest);
+				ShineUpdate.instance().metrics.completed(Phase.HASH, millisSince(hashStarted), totalSize);
+			} else {
+				L.debug("server doesn't accept ranges, falling back to a single connection");
+			}
+		}
+
+		if (downloadedFile == null) {
+			long delay = StaticConfig.DOWNLOAD_RETRY_DELAY;
+			for (int attempt = 0;; attempt++) {
+				String url = urls.get(attempt % urls.size());
+				try {
+					downloadHash = transfer(url, hash, partFile, totalSize, digest, extractor);
+					ShineUpdate.instance().metrics.completed(
+						Phase.DOWNLOAD,
+						millisSince(started),
+						this.received.get() - receivedBefore);
+					break;
+
+				} catch (final IOException e) {
+					if (! this.retry(e, attempt, urls.size())) {
+						throw e;
+					}
+					delay = this.backOff(attempt, urls, delay, "download failed at " + partFile.length() + " bytes", e);
+				}
+			}
+			downloadedFile = partFile;
+		}
+
+		Preconditions.checkState(
+			downloadedFile.renameTo(completeFile),
+			"could not rename '%s' to '%s'",
+			downloadedFile,
+			completeFile);
+		ShineUpdate.instance().prefStore.remove(VALIDATOR_PREFIX + hash);
+
+		return downloadHash;
+	}
+
+	/**
+	 * Splits the payload into ranges that are fetched in parallel and written to their offsets of a preallocated
+	 * file. The offsets reached are remembered, so an interrupted segmented download continues where each range
+	 * stopped. The first range that fails ends the others, its failure is the one thrown.
+	 *
+	 * @return false if the server doesn't support ranges, nothing has been written then
+	 */
+	private boolean transferSegmented(final List<String> urls, final String hash, final File segmentsFile,
+									  final int totalSize)
+							   throws IOException, InterruptedException {
+
+		String positionsKey = SEGMENTS_PREFIX + hash;
+		String validatorKey = VALIDATOR_PREFIX + hash;
+
+		/* segment boundaries, restored from an earlier run if the file is still there */
+		int count			   = ShineUpdate.instance().governor.threads(StaticConfig.DOWNLOAD_CONNECTIONS);
+		final Ranges ranges = new Ranges(count);
+		for (int i = 0; i < count; i++) {
+			ranges.positions.set(i, (totalSize / count) * i);
+			ranges.ends[i] = (i == (count - 1)) ? totalSize : ((totalSize / count) * (i + 1));
+		}
+
+		String storedPositions = ShineUpdate.instance().prefStore.get(positionsKey, (String) null);
+		if (segmentsFile.isFile() && (segmentsFile.length() == totalSize) && (storedPositions != null)) {
+			List<String> stored = Lists.newArrayList(Splitter.on(',').split(storedPositions));
+			if (stored.size() == count) {
+				L.debug("resuming segmented download at {}", storedPositions);
+				for (int i = 0; i < count; i++) {
+					ranges.positions.set(i, Long.valueOf(stored.get(i)));
+				}
+			}
+		}
+
+		int first = 0;
+		while ((first < count) && (ranges.positions.get(first) >= ranges.ends[first])) {
+			first++;
+		}
+		if (first == count) {
+			ShineUpdate.instance().prefStore.remove(positionsKey);
+			return true;
+		}
+
+		/* probe with the first open range, a server ignoring ranges answers with the whole payload */
+		HttpURLConnection probe = null;
+		String probeURL		    = null;
+		String validator	    = null;
+		long delay			    = StaticConfig.DOWNLOAD_RETRY_DELAY;
+		for (int attempt = 0; probe == null; attempt++) {
+			probeURL			   = urls.get(attempt % urls.size());
+			validator			   = storedValidator(hash, probeURL);
+			HttpURLConnection conn = openRange(probeURL, ranges.positions.get(first), ranges.ends[first], validator);
+			try {
+				int code = conn.getResponseCode();
+				if (code == HttpURLConnection.HTTP_OK) {
+					conn.disconnect();
+					untrack(conn);
+					if (validator != null) {
+
+						/* payload on the server has changed, start over */
+						ShineUpdate.instance().prefStore.remove(validatorKey);
+						ShineUpdate.instance().prefStore.remove(positionsKey);
+						segmentsFile.delete();
+						return transferSegmented(urls, hash, segmentsFile, totalSize);
+					}
+					return false;
+
+				} else if (code != HttpURLConnection.HTTP_PARTIAL) {
+					ShineUpdate.instance().transport.release(conn);
+					throw new HttpStatusException(code, probeURL);
+				}
+				checkContentRange(conn, probeURL, ranges.positions.get(first), totalSize);
+				probe = conn;
+
+			} catch (final IOException e) {
+				untrack(conn);
+				if (! this.retry(e, attempt, urls.size())) {
+					throw e;
+				}
+				delay = this.backOff(attempt, urls, delay, "probing ranges failed", e);
+			}
+		}
+
+		if (validator == null) {
+			validator = strongValidator(probe);
+			if (validator != null) {
+				storeValidator(hash, probeURL, validator);
+			}
+		}
+
+		boolean completed	  = false;
+		RandomAccessFile file = new RandomAccessFile(segmentsFile, "rw");
+		try {
+			file.setLength(totalSize);
+
+			final FileChannel channel	 = file.getChannel();
+			final CountDownLatch latch	 = new CountDownLatch(count - first - 1);
+			final String rangeValidator  = validator;
+			final String validatorURL	 = probeURL;
+			long alreadyThere = 0;
+			for (int i = 0; i < count; i++) {
+				alreadyThere = alreadyThere + (ranges.positions.get(i) - ((totalSize / count) * i));
+			}
+			progress.start(totalSize, alreadyThere);
+
+			/* first open range continues on the probe connection, the others run on the executor */
+			for (int i = first + 1; i < count; i++) {
+				final int index = i;
+				ShineUpdate.instance().executor.execute(
+					new Runnable() {
+							@Override
+							public void run() {
+								enter();
+								ranges.enter();
 								try {
-									out.close();
-								} catch (final IOException e) {}
+									transferSegment(urls, validatorURL, rangeValidator, null, channel, ranges, index);
+								} catch (final InterruptedException e) {
+									ranges.fail(new InterruptedIOException(e.getMessage()));
+								} catch (final IOException | RuntimeException | Error e) {
+
+									/* not lost with the thread, the range would be left with a hole */
+									ranges.fail(e);
+								} finally {
+									ranges.leave();
+									leave();
+									latch.countDown();
+								}
 							}
+						});
+			}
+
+			ranges.enter();
+			try {
+				transferSegment(urls, validatorURL, rangeValidator, probe, channel, ranges, first);
+			} catch (final InterruptedException e) {
+				ranges.fail(new InterruptedIOException(e.getMessage()));
+			} catch (final IOException | RuntimeException | Error e) {
+				ranges.fail(e);
+			} finally {
+				ranges.leave();
+			}
+
+			/* an interrupt from a failed range has done its job, one from stopDownload() is told by cancelled */
+			if (ranges.isFailed()) {
+				Thread.interrupted();
+			}
+
+			/*
+			 * the others are waited for even if this thread is interrupted, they are ended by a failed range or by
+			 * stopDownload(); their positions are read once they have stopped
+			 */
+			Uninterruptibles.awaitUninterruptibly(latch);
+
+			Throwable failure = ranges.getFailure();
+			if (failure != null) {
+				Throwables.propagateIfPossible(failure, IOException.class);
+				throw new IOException(failure);
+			}
+
+			completed = true;
+			return true;
+
+		} finally {
+			file.close();
+
+			/* remember how far each range got */
+			if (completed) {
+				ShineUpdate.instance().prefStore.remove(positionsKey);
+			} else {
+				List<Long> positions = Lists.newArrayList();
+				for (int i = 0; i < count; i++) {
+					positions.add(ranges.positions.get(i));
+				}
+				ShineUpdate.instance().prefStore.store(positionsKey, Joiner.on(',').join(positions));
+			}
+		}
+	}
+
+	/**
+	 * Fetches one range into its offset of the channel, retrying failures from where it stopped on the next mirror.
+	 *
+	 * @param validatorURL the mirror that <code>validator</code> is from, <code>firstConnection</code> is connected to it
+	 */
+	private void transferSegment(final List<String> urls, final String validatorURL, final String validator,
+								 final HttpURLConnection firstConnection, final FileChannel channel,
+								 final Ranges ranges, final int index)
+						  throws IOException, InterruptedException {
+
+		HttpURLConnection conn	  = firstConnection;
+		long delay				  = StaticConfig.DOWNLOAD_RETRY_DELAY;
+		long end				  = ranges.ends[index];
+		ResourceGovernor governor = ShineUpdate.instance().governor;
+		TransferSize transferSize = TransferSize.create();
+		byte data[]				  = new byte[transferSize.get()];
+		ByteBuffer buffer		  = ByteBuffer.wrap(data);
+		for (int attempt = 0; ranges.positions.get(index) < end; attempt++) {
+			String url	   = urls.get(attempt % urls.size());
+			long position  = ranges.positions.get(index);
+			InputStream in = null;
+			try {
+				if (conn == null) {
+					conn = openRange(url, position, end, url.equals(validatorURL) ? validator : null);
+					ranges.connect(index, conn);
+
+					int code = conn.getResponseCode();
+					if (code == HttpURLConnection.HTTP_OK) {
+						ShineUpdate.instance().transport.discard(conn);
+						throw new HttpStatusException(code, url);
+					} else if (code != HttpURLConnection.HTTP_PARTIAL) {
+						ShineUpdate.instance().transport.release(conn);
+						throw new HttpStatusException(code, url);
+					}
+
+					/* other mirrors are asked without If-Range */
+					checkContentRange(conn, url, position, ranges.ends[ranges.ends.length - 1]);
+				} else {
+					ranges.connect(index, conn);
+				}
+
+				/*
+				 * as in transfer(), the socket reads straight into an array of the adaptive size that is handed to
+				 * the file channel at the offset of the range. stopDownload() or a failed range end a blocking read
+				 * by disconnecting.
+				 */
+				in = conn.getInputStream();
+				int count;
+				while (position < end) {
+					if (data.length < transferSize.get()) {
+						data	   = new byte[transferSize.get()];
+						buffer     = ByteBuffer.wrap(data);
+					}
+					int length = (int) Math.min(transferSize.get(), end - position);
+					if ((count = in.read(data, 0, length)) == -1) {
+						break;
+					}
+
+					buffer.clear().limit(count);
+					while (buffer.hasRemaining()) {
+						position = position + channel.write(buffer, position);
+					}
+					ranges.positions.set(index, position);
+					governor.acquireNetwork(count);
+					this.received.addAndGet(count);
+					transferSize.update(count);
+
+					progress.add(count);
+				}
+
+				if (position < end) {
+					throw new EOFException("range " + index + " closed at " + position + " instead of " + end);
+				}
+
+			} catch (final IOException e) {
+				if (ranges.isFailed() || ! this.retry(e, attempt, urls.size())) {
+					throw e;
+				}
+				delay = this.backOff(
+						attempt,
+						urls,
+						delay,
+						"range " + index + " failed at " + ranges.positions.get(index),
+						e);
+
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (final IOException e) {}
+				}
+				if (conn != null) {
+					ranges.connect(index, null);
+					untrack(conn);
+				}
+				conn = null;
+			}
+		}
+	}
+
+	private HttpURLConnection openRange(final String url, final long from, final long to, final String validator)
+								 throws IOException {
+
+		HttpURLConnection conn = (HttpURLConnection) ShineUpdate.instance().transport.open(url);
+		conn.setReadTimeout(this.readTimeout);
+		track(conn);
+		conn.setRequestProperty("Range", "bytes=" + from + "-" + (to - 1));
+		if (validator != null) {
+			conn.setRequestProperty("If-Range", validator);
+		}
+
+		return conn;
+	}
+
+	/**
+	 * A range is only continued if it starts where asked and belongs to a payload of the expected length, a mirror
+	 * that isn't asked with If-Range could serve another build otherwise.
+	 */
+	private static void checkContentRange(final URLConnection conn, final String url, final long from,
+										  final long totalSize)
+								   throws IOException {
+
+		String range	= Strings.nullToEmpty(conn.getHeaderField("Content-Range")).trim();
+		Matcher matcher = CONTENT_RANGE.matcher(range);
+		if (! matcher.matches() || (Long.parseLong(matcher.group(1)) != from)
+				|| ((totalSize > 0) && ! matcher.group(2).equals("*")
+				&& (Long.parseLong(matcher.group(2)) != totalSize))) {
+			ShineUpdate.instance().transport.discard(conn);
+			throw new RangeMismatchException(
+				"'" + url + "' answered range '" + range + "' for " + from + " of " + totalSize + " bytes");
+		}
+	}
+
+	/* a validator only holds on the mirror it came from, so it's stored as '<url> <validator>' */
+	private static String storedValidator(final String hash, final String url) {
+
+		String stored = ShineUpdate.instance().prefStore.get(VALIDATOR_PREFIX + hash, (String) null);
+		if ((stored == null) || ! stored.startsWith(url + " ")) {
+			return null;
+		}
+
+		return stored.substring(url.length() + 1);
+	}
+
+	private static void storeValidator(final String hash, final String url, final String validator) {
+		ShineUpdate.instance().prefStore.store(VALIDATOR_PREFIX + hash, url + " " + validator);
+	}
+
+	/** an ETag or a Last-Modified date, weak ETags are no good for ranges */
+	private static String strongValidator(final URLConnection conn) {
+
+		String etag		    = conn.getHeaderField("ETag");
+		String lastModified = conn.getHeaderField("Last-Modified");
+		if ((etag != null) && ! etag.startsWith("W/")) {
+			return etag;
+		}
+
+		return lastModified;
+	}
+
+	/**
+	 * Appends the remaining bytes of <code>url</code> to <code>partFile</code>. The server's validator is remembered
+	 * so that a later resume only continues if the payload on the server is still the same.
+	 *
+	 * @return the digest of the whole file, bytes kept from an earlier attempt are read once to compute it
+	 */
+	private HashCode transfer(final String url, final String hash, final File partFile, final int totalSize,
+							  final HashFunction digest, final StreamingExtractor extractor)
+					   throws IOException {
+
+		long offset			  = partFile.length();
+		URLConnection conn    = ShineUpdate.instance().transport.open(url);
+		String validatorKey   = VALIDATOR_PREFIX + hash;
+		conn.setReadTimeout(this.readTimeout);
+
+		boolean append = false;
+		if (conn instanceof HttpURLConnection) {
+			HttpURLConnection httpConn = (HttpURLConnection) conn;
+			track(httpConn);
+			if (offset > 0) {
+				L.debug("resuming download of '{}' at {} bytes", url, offset);
+				httpConn.setRequestProperty("Range", "bytes=" + offset + "-");
+
+				String previousValidator = storedValidator(hash, url);
+				if (previousValidator != null) {
+					httpConn.setRequestProperty("If-Range", previousValidator);
+				}
+			}
+
+			int code = httpConn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_PARTIAL) {
+				try {
+					checkContentRange(httpConn, url, offset, totalSize);
+				} catch (final RangeMismatchException e) {
+					untrack(httpConn);
+					throw e;
+				}
+				append = true;
+			} else if ((code == 416) && (offset == totalSize)) {
+				L.debug("server reports nothing left to download");
+				ShineUpdate.instance().transport.release(httpConn);
+				untrack(httpConn);
+				if (extractor != null) {
+					extractor.begin();
+					feed(partFile, extractor);
+				}
+				return FileHelper.hash(partFile, digest);
+			} else if (code == 416) {
+
+				/* the part file doesn't fit the payload on the server, resuming it would fail forever */
+				L.warn("server rejects resuming '{}' at {} bytes, starting over", url, offset);
+				ShineUpdate.instance().transport.release(httpConn);
+				untrack(httpConn);
+				discardPartialDownload(hash);
+				return this.transfer(url, hash, partFile, totalSize, digest, extractor);
+			} else if (code != HttpURLConnection.HTTP_OK) {
+				ShineUpdate.instance().transport.release(httpConn);
+				untrack(httpConn);
+				throw new HttpStatusException(code, url);
+			}
+
+			/* remember the validator for the next resume */
+			String validator = strongValidator(httpConn);
+			if (validator != null) {
+				storeValidator(hash, url, validator);
+			} else {
+				ShineUpdate.instance().prefStore.remove(validatorKey);
+			}
+		}
+
+		if (! append) {
+			offset = 0;
+		}
+
+		Hasher hasher			  = digest.newHasher();
+		ResourceGovernor governor = ShineUpdate.instance().governor;
+		TransferSize transferSize = TransferSize.create();
+		byte data[]				  = new byte[StaticConfig.DOWNLOAD_BUFFER_MIN];
+		ByteBuffer buffer		  = ByteBuffer.wrap(data);
+		InputStream in			  = null;
+		FileChannel out			  = null;
+		try {
+
+			/* every attempt extracts from the start */
+			if (extractor != null) {
+				extractor.begin();
+			}
+
+			/* continue the digest (and the extraction) with the bytes that are already there */
+			if (append) {
+				InputStream existing = new FileInputStream(partFile);
+				try {
+					int count;
+					while ((count = existing.read(data)) != -1) {
+						governor.acquireDisk(count);
+						hasher.putBytes(data, 0, count);
+						if (extractor != null) {
+							extractor.write(data, 0, count);
 						}
 					}
-				});
+				} finally {
+					existing.close();
+				}
+			}
+
+			/*
+			 * the socket reads straight into the array that is hashed and handed to the file channel, there's no
+			 * copy into stream buffers. stopDownload() ends a blocking read by disconnecting.
+			 */
+			in	    = conn.getInputStream();
+			out     = new FileOutputStream(partFile, append).getChannel();
+
+			progress.start(totalSize, offset);
+
+			long received = offset;
+			int count;
+			while (true) {
+				if (data.length < transferSize.get()) {
+					data	   = new byte[transferSize.get()];
+					buffer     = ByteBuffer.wrap(data);
+				}
+				if ((count = in.read(data, 0, transferSize.get())) == -1) {
+					break;
+				}
+
+				hasher.putBytes(data, 0, count);
+				buffer.clear().limit(count);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				if (extractor != null) {
+					extractor.write(data, 0, count);
+				}
+				received = received + count;
+				governor.acquireNetwork(count);
+				this.received.addAndGet(count);
+				transferSize.update(count);
+
+				progress.add(count);
+			}
+
+			/* a dropped connection may look like a regular end of stream */
+			if ((totalSize > 0) && (received < totalSize)) {
+				throw new EOFException("connection closed after " + received + " of " + totalSize + " bytes");
+			}
+
+			return hasher.hash();
+
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {}
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException e) {}
+			}
+			if (conn instanceof HttpURLConnection) {
+				untrack(conn);
+			}
+		}
+	}
+
+	private static void feed(final File file, final StreamingExtractor extractor)
+					  throws IOException {
+
+		byte data[]    = new byte[StaticConfig.DOWNLOAD_BUFFER_MAX];
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(data)) != -1) {
+				extractor.write(data, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long millisSince(final long nanoTime) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+	}
+
+	/** errors that won't go away by asking the same server again are still worth a try on every other mirror */
+	private boolean retry(final IOException e, final int attempt, final int mirrors) {
+		if (this.cancelled || (attempt >= (StaticConfig.DOWNLOAD_RETRIES * mirrors))) {
+			return false;
+		}
+
+		return isTransient(e) || ((attempt + 1) < mirrors);
+	}
+
+	/**
+	 * Waits before the next attempt, unless it goes to another mirror.
+	 *
+	 * @return the next delay
+	 */
+	private long backOff(final int attempt, final List<String> urls, final long delay, final String failure,
+						 final IOException e)
+				  throws InterruptedException {
+
+		String next = urls.get((attempt + 1) % urls.size());
+		if (((attempt + 1) % urls.size()) != 0) {
+			L.warn(
+				"{} on '{}' ({}), continuing from '{}'",
+				new Object[] { failure, urls.get(attempt % urls.size()), e.getMessage(), next });
+			return delay;
+		}
+
+		L.warn("{} ({}), retrying in {} ms", new Object[] { failure, e.getMessage(), delay });
+		Thread.sleep(delay);
+
+		return delay * 2;
+	}
+
+	/** 4xx answers won't change by asking again, neither does a mirror with another payload */
+	private static boolean isTransient(final IOException e) {
+		if (e instanceof HttpStatusException) {
+			return ((HttpStatusException) e).code >= 500;
+		}
+
+		return ! (e instanceof FileNotFoundException) && ! (e instanceof RangeMismatchException);
+	}
+
+	/** deletes leftovers of payloads that aren't current anymore */
+	private static void removeStaleDownloads(final File cacheDir, final String currentHash, final String patchHash) {
+
+		File files[] = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (final File file : files) {
+			String name = file.getName();
+			boolean isDownload =
+				name.endsWith(PART_SUFFIX) || name.endsWith(SEGMENTS_SUFFIX) || name.endsWith(COMPLETE_SUFFIX)
+				|| name.endsWith(PATCHED_SUFFIX) || name.endsWith(STAGING_SUFFIX);
+			if (isDownload && ! name.startsWith(currentHash) && ! name.startsWith(patchHash)) {
+				L.debug("deleting stale download '{}'", file);
+				try {
+					FileHelper.deleteRecursively(file);
+				} catch (final IOException e) {
+					L.warn("could not delete '{}'", file);
+				}
+			}
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	private static final class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+		private final int code;
+
+		public HttpStatusException(final int code, final String url) {
+			super("server answered " + code + " for '" + url + "'");
+			this.code = code;
+		}
+	}
+
+	/** the ranges of a segmented download, the first one that fails ends the others */
+	private static final class Ranges {
+
+		/* written by the thread of each range, read by the others while persisting */
+		private final AtomicLongArray positions;
+		private final long ends[];
+		private final HttpURLConnection connections[];
+		private final Set<Thread> threads = Sets.newHashSet();
+		private Throwable failure;
+
+		public Ranges(final int count) {
+			this.positions   = new AtomicLongArray(count);
+			this.ends	     = new long[count];
+			this.connections = new HttpURLConnection[count];
+		}
+
+		public synchronized void enter() {
+			this.threads.add(Thread.currentThread());
+			if (this.failure != null) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public synchronized void leave() {
+			this.threads.remove(Thread.currentThread());
+		}
+
+		/** the connection a range reads from, disconnected right away if another range has failed */
+		public synchronized void connect(final int index, final HttpURLConnection conn) {
+			this.connections[index] = conn;
+			if ((conn != null) && (this.failure != null)) {
+				conn.disconnect();
+			}
+		}
+
+		/** keeps the first failure, the others are usually caused by ending the ranges */
+		public synchronized void fail(final Throwable t) {
+			if (this.failure != null) {
+				return;
+			}
+
+			this.failure = t;
+			for (final Thread thread : this.threads) {
+				if (thread != Thread.currentThread()) {
+					thread.interrupt();
+				}
+			}
+			for (final HttpURLConnection conn : this.connections) {
+				if (conn != null) {
+					conn.disconnect();
+				}
+			}
+		}
+
+		public synchronized boolean isFailed() {
+			return this.failure != null;
+		}
+
+		public synchronized Throwable getFailure() {
+			return this.failure;
+		}
+	}
+
+	private static final class RangeMismatchException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public RangeMismatchException(final String message) {
+			super(message);
+		}
 	}
 }
\ No newline at end of file
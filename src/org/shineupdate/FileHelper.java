@@ -1,80 +1,106 @@
 package org.shineupdate;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
 
 public final class FileHelper {
 
-	private static final Logger L = LoggerFactory.getLogger(FileHelper.class);
+	private static final int HASH_BUFFER_SIZE = 1024*64;
 
 	public static String getSHA1Hash(final File file) {
+		return getHash(file, Hashing.sha1());
+	}
+
+	public static String getHash(final File file, final HashFunction hashFunction) {
 		try {
-			return Files.hash(file, Hashing.sha1()).toString();
+			return hash(file, hashFunction).toString();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/** reads at the pace the {@link ResourceGovernor} allows */
+	static HashCode hash(final File file, final HashFunction hashFunction) throws IOException {
+
+		ResourceGovernor governor = ResourceGovernor.current();
+		Hasher hasher			  = hashFunction.newHasher();
+		byte buffer[]			  = new byte[HASH_BUFFER_SIZE];
+		InputStream in			  = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				hasher.putBytes(buffer, 0, count);
+				governor.acquireDisk(count);
+			}
+		} finally {
+			in.close();
+		}
+
+		return hasher.hash();
+	}
+
 	public static File unzipMacApplication(final File zippedFile) {
+		return unzipMacApplication(zippedFile, DownloadProgress.create());
+	}
+
+	/** @param progress advances while the archive is extracted */
+	public static File unzipMacApplication(final File zippedFile, final DownloadProgress progress) {
 		try {
 			File tempDir = Files.createTempDir();
+			ZipExtractor.extract(zippedFile, tempDir, progress);
 
-			final ZipFile zipFile = new ZipFile(zippedFile);
-			Enumeration<?> entries = zipFile.entries();
-			while (entries.hasMoreElements()) {
-				final ZipEntry entry = (ZipEntry) entries.nextElement();
-				L.debug("{}: '{}'", entry.isDirectory() ? "dir" : "file", entry.getName());
-
-				String name = tempDir.getAbsolutePath() + File.separator + entry.getName();
-				File target = new File(name);
-				if (entry.isDirectory()) {
-					Preconditions.checkState(target.mkdirs(), "could not create directories: '%s'", target);
-				} else {
-					Files.createParentDirs(target);
-					InputSupplier<InputStream> supplier = new InputSupplier<InputStream>() {
-						@Override
-						public InputStream getInput() throws IOException {
-							return zipFile.getInputStream(entry);
-						}
-					};
-					Files.copy(supplier, target);
-				}
-			}
-			zipFile.close();
+			return findApplication(tempDir);
 
-			/* Look for ".app" */
-			/*
-			for (File file : tempDir.listFiles()) {
-				if (file.getName().endsWith(".app") && file.isDirectory()) {
-					return file;
-				}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** looks for the application in an extracted archive */
+	public static File findApplication(final File tempDir) {
+
+		/* Look for ".app" */
+		/*
+		for (File file : tempDir.listFiles()) {
+			if (file.getName().endsWith(".app") && file.isDirectory()) {
+				return file;
 			}
-			*/
-			
-			for (File file : tempDir.listFiles()) {
-				if (file.getName().endsWith(".exe")) {
-					return file;
-				}
+		}
+		*/
+		
+		for (File file : tempDir.listFiles()) {
+			if (file.getName().endsWith(".exe")) {
+				return file;
 			}
+		}
 
 
-			Preconditions.checkState(false, "no .app found in tempdir: %s", tempDir);
-			return null;
+		Preconditions.checkState(false, "no .app found in tempdir: %s", tempDir);
+		return null;
+	}
 
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+	/** deletes a tree, symbolic links are removed but not followed */
+	public static void deleteRecursively(final File file) throws IOException {
+		Path path = file.toPath();
+		if (java.nio.file.Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			File children[] = file.listFiles();
+			if (children != null) {
+				for (final File child : children) {
+					deleteRecursively(child);
+				}
+			}
 		}
+		java.nio.file.Files.deleteIfExists(path);
 	}
 }
@@ -0,0 +1,159 @@
+package org.shineupdate;
+
+import com.google.common.base.Strings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All HTTP of shine-update goes through here, the instance is owned by {@link ShineUpdate}.
+ * <p>
+ * HttpURLConnection keeps idle connections per host and hands them to the next request if the previous response was
+ * read to its end and closed instead of disconnected; TLS sessions are resumed through the default SSLContext. So a
+ * check, the probes of the mirrors and the download that follows share their connections, as long as every response
+ * ends in {@link #release(URLConnection)} or a closed stream. At most {@link StaticConfig#HTTP_IDLE_CONNECTIONS} are
+ * kept per host, which only takes effect if nothing in the JVM has used HTTP before.
+ */
+final class HttpTransport {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		  = LoggerFactory.getLogger(HttpTransport.class);
+	private static final int DRAIN_LIMIT = 1024*64;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private HttpTransport() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static HttpTransport create() {
+
+		/* read once by the JDK's keep-alive cache, an application's own setting wins */
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", String.valueOf(StaticConfig.HTTP_IDLE_CONNECTIONS));
+		}
+
+		return new HttpTransport();
+	}
+
+	public URLConnection open(final String url) throws IOException {
+
+		URLConnection conn = new URL(url).openConnection();
+		conn.setConnectTimeout(StaticConfig.CONNECT_TIMEOUT);
+		conn.setReadTimeout(StaticConfig.READ_TIMEOUT);
+
+		return conn;
+	}
+
+	/**
+	 * Asks for a gzip or deflate encoded body, for text like the description. Payloads are compressed already and
+	 * are fetched in byte ranges of their identity encoding, so they never go through here.
+	 */
+	public URLConnection openCompressed(final String url) throws IOException {
+
+		URLConnection conn = this.open(url);
+		conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+
+		return conn;
+	}
+
+	/**
+	 * The body of <code>conn</code>, decompressed while it is read. A file ending in <code>.gz</code> that is served
+	 * without Content-Encoding (static hosting of a pre-compressed description) is unpacked as well.
+	 */
+	public InputStream decode(final URLConnection conn) throws IOException {
+
+		InputStream in  = conn.getInputStream();
+		String encoding = Strings.nullToEmpty(conn.getContentEncoding()).trim().toLowerCase(Locale.ENGLISH);
+		if (encoding.equals("gzip") || encoding.equals("x-gzip") || conn.getURL().getPath().endsWith(".gz")) {
+			return new GZIPInputStream(in, StaticConfig.DOWNLOAD_BUFFER_MIN);
+		} else if (encoding.equals("deflate")) {
+
+			/* supposed to be zlib-wrapped, some servers send raw deflate: a zlib header is a multiple of 31 */
+			PushbackInputStream pushback = new PushbackInputStream(in, 2);
+			int cmf						 = pushback.read();
+			int flg						 = pushback.read();
+			if (flg != -1) {
+				pushback.unread(flg);
+			}
+			if (cmf != -1) {
+				pushback.unread(cmf);
+			}
+
+			boolean wrapped = ((cmf & 0x0f) == 8) && ((((cmf << 8) | flg) % 31) == 0);
+
+			return new InflaterInputStream(pushback, new Inflater(! wrapped), StaticConfig.DOWNLOAD_BUFFER_MIN) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+
+						/* an Inflater passed in isn't ended by the stream */
+						inf.end();
+					}
+				};
+		}
+
+		return in;
+	}
+
+	/**
+	 * Ends a response that isn't read, e.g. an error or an unexpected status. A short body is read to its end so the
+	 * connection can be reused, a long one isn't worth it and the connection is dropped.
+	 */
+	public void release(final URLConnection conn) {
+		if (! (conn instanceof HttpURLConnection)) {
+			return;
+		}
+
+		HttpURLConnection httpConn = (HttpURLConnection) conn;
+		InputStream in			   = null;
+		try {
+			in = (httpConn.getResponseCode() >= 400) ? httpConn.getErrorStream() : httpConn.getInputStream();
+			if (in == null) {
+				return;
+			}
+
+			byte buffer[] = new byte[DRAIN_LIMIT];
+			int drained   = 0;
+			int count	  = 0;
+			while ((drained < DRAIN_LIMIT) && ((count = in.read(buffer, drained, DRAIN_LIMIT - drained)) != -1)) {
+				drained = drained + count;
+			}
+			if ((count != -1) && (in.read() != -1)) {
+				httpConn.disconnect();
+			}
+
+		} catch (final IOException e) {
+			L.debug("dropping connection to '{}': {}", conn.getURL(), e.getMessage());
+			httpConn.disconnect();
+
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException e) {}
+			}
+		}
+	}
+
+	/** ends a response whose body is large (e.g. a payload sent in full), the connection can't be reused */
+	public void discard(final URLConnection conn) {
+		if (conn instanceof HttpURLConnection) {
+			((HttpURLConnection) conn).disconnect();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.shineupdate.VersionDescription.Section;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The images of the changelog. They are fetched in parallel as soon as an update is found and kept in the
+ * cache-directory, so the changelog doesn't wait for the network and an image is fetched only once. The least
+ * recently used images are removed when all of them take up more than {@link StaticConfig#IMAGE_CACHE_MAX_SIZE},
+ * except for the one that was just stored and those that are being read.
+ */
+final class ImageCache {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		   = LoggerFactory.getLogger(ImageCache.class);
+	private static final String DIRECTORY = "images";
+	private static final int OPEN_RETRIES = 2;
+
+	/* fetches that are running, by url */
+	private static final Map<String, FutureTask<File>> LOADING = Maps.newHashMap();
+
+	/* images with open streams */
+	private static final Multiset<File> READING = ConcurrentHashMultiset.create();
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private ImageCache() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** starts fetching all images of the changelog that aren't cached, this parses its sections */
+	public static void prefetch(final VersionDescription versionDesc) {
+		ShineUpdate.instance().executor.execute(
+			new Runnable() {
+					@Override
+					public void run() {
+						for (final Section section : versionDesc.getSections()) {
+							if ((section.getImageURL() != null) && (cached(section.getImageURL()) == null)) {
+								load(section.getImageURL());
+							}
+						}
+					}
+				});
+	}
+
+	/** @return the cached image as an uri for the browser, or null if it isn't cached (yet) */
+	public static URI cached(final String url) {
+
+		File file = file(url);
+		if (! file.isFile()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+
+		return file.toURI();
+	}
+
+	/** the image, from the cache or fetched now; a running prefetch of it is waited for */
+	public static InputStream open(final String url) throws IOException {
+
+		/* an image that trim() removed before it could be opened is fetched again */
+		for (int attempt = 0;; attempt++) {
+
+			/* registered until the stream is closed, so trim() leaves the file alone */
+			final File file = file(url);
+			boolean opened  = false;
+			READING.add(file);
+			try {
+				if (! file.isFile()) {
+					load(url).get();
+				}
+
+				InputStream in =
+					new FileInputStream(file) {
+						private boolean closed = false;
+
+						@Override
+						public void close() throws IOException {
+							try {
+								super.close();
+							} finally {
+								if (! this.closed) {
+									this.closed = true;
+									READING.remove(file);
+								}
+							}
+						}
+					};
+				file.setLastModified(System.currentTimeMillis());
+				opened = true;
+
+				return in;
+
+			} catch (final FileNotFoundException e) {
+				if (attempt >= OPEN_RETRIES) {
+					throw e;
+				}
+				L.debug("image '{}' was removed while opening it, fetching it again", url);
+
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while loading '" + url + "'");
+
+			} catch (final ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+
+			} finally {
+				if (! opened) {
+					READING.remove(file);
+				}
+			}
+		}
+	}
+
+	/* one fetch per url at a time */
+	private static FutureTask<File> load(final String url) {
+		synchronized (LOADING) {
+
+			FutureTask<File> task = LOADING.get(url);
+			if (task != null) {
+				return task;
+			}
+
+			/* a fetch may have completed since the caller looked */
+			final File file = file(url);
+			if (file.isFile()) {
+				task =
+					new FutureTask<File>(
+						new Callable<File>() {
+								@Override
+								public File call() {
+									return file;
+								}
+							});
+				task.run();
+
+				return task;
+			}
+
+			task =
+				new FutureTask<File>(
+					new Callable<File>() {
+							@Override
+							public File call() throws IOException {
+								try {
+									return fetch(url);
+								} catch (final IOException | RuntimeException e) {
+
+									/* nobody waits for the result of a prefetch */
+									L.warn("could not fetch image '{}': {}", url, e.getMessage());
+									throw e;
+								} finally {
+									synchronized (LOADING) {
+										LOADING.remove(url);
+									}
+								}
+							}
+						});
+			LOADING.put(url, task);
+			ShineUpdate.instance().executor.execute(task);
+
+			return task;
+		}
+	}
+
+	private static File fetch(final String url) throws IOException {
+		L.debug("fetching image '{}'", url);
+
+		HttpTransport transport = ShineUpdate.instance().transport;
+		URLConnection conn	    = transport.openCompressed(url);
+		if (conn instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) conn).getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				transport.release(conn);
+				throw new IOException("server answered " + code + " for '" + url + "'");
+			}
+		}
+
+		File file = file(url);
+		if (! file.getParentFile().isDirectory() && ! file.getParentFile().mkdirs()) {
+			transport.discard(conn);
+			throw new IOException("could not create '" + file.getParentFile() + "'");
+		}
+
+		/* of its own, other processes of the application share the cache-directory */
+		File tempFile;
+		try {
+			tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		} catch (final IOException e) {
+			transport.discard(conn);
+			throw e;
+		}
+
+		InputStream in   = transport.decode(conn);
+		OutputStream out = null;
+		boolean copied   = false;
+		try {
+			out = new FileOutputStream(tempFile);
+			ByteStreams.copy(in, out);
+			copied = true;
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+			if (! copied) {
+				tempFile.delete();
+			}
+		}
+
+		if ((file.exists() && ! file.delete()) || ! tempFile.renameTo(file)) {
+			tempFile.delete();
+			throw new IOException("could not replace '" + file + "'");
+		}
+		trim(file);
+
+		return file;
+	}
+
+	/** removes the least recently used images until the rest fits, <code>stored</code> is kept */
+	private static synchronized void trim(final File stored) {
+
+		File files[] = new File(ShineUpdate.instance().cacheDir, DIRECTORY).listFiles();
+		if (files == null) {
+			return;
+		}
+
+		List<File> images = Lists.newArrayList();
+		long size		  = 0;
+		for (final File file : files) {
+			if (file.isFile() && ! file.getName().endsWith(".tmp")) {
+				images.add(file);
+				size = size + file.length();
+			}
+		}
+
+		Collections.sort(
+			images,
+			new Comparator<File>() {
+					@Override
+					public int compare(final File f1, final File f2) {
+						return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+					}
+				});
+		for (final File image : images) {
+			if (size <= StaticConfig.IMAGE_CACHE_MAX_SIZE) {
+				break;
+			} else if (image.equals(stored) || READING.contains(image)) {
+				continue;
+			}
+
+			L.debug("removing least recently used image '{}'", image);
+			size = size - image.length();
+			image.delete();
+		}
+	}
+
+	/* named after the url, with its extension so the browser recognizes the type */
+	private static File file(final String url) {
+
+		String name = Hashing.sha1().hashString(url, Charsets.UTF_8).toString();
+		String path = url;
+		try {
+			path = Strings.nullToEmpty(URI.create(url).getPath());
+		} catch (final IllegalArgumentException e) {}
+
+		int dot = path.lastIndexOf('.');
+		if ((dot > path.lastIndexOf('/')) && path.substring(dot + 1).matches("[A-Za-z0-9]{1,5}")) {
+			name = name + path.substring(dot);
+		}
+
+		return new File(new File(ShineUpdate.instance().cacheDir, DIRECTORY), name);
+	}
+}
@@ -1,22 +1,42 @@
 package org.shineupdate;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
 
-import java.util.Arrays;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
 
 import org.apache.commons.codec.binary.Base64;
 
 import org.appkit.util.ResourceStreamSupplier;
 
+/**
+ * Installs an extracted application over the running one, from a separate JVM once the application has exited.
+ * <p>
+ * The application lives in two slots next to each other: the new version is copied to
+ * <code>&lt;application&gt;.next</code> while the old one is still in place, then two renames swap it in and keep the
+ * old version as <code>&lt;application&gt;.previous</code>, for {@link #rollback(File)}. The application is only
+ * missing between these renames. A journal, <code>&lt;application&gt;.journal</code>, records how far an install got,
+ * {@link #recover(File)} completes or rolls back an install that was interrupted.
+ */
 public final class InstallHelper {
 
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final String NEXT_SUFFIX		= ".next";
+	private static final String PREVIOUS_SUFFIX = ".previous";
+	private static final String JOURNAL_SUFFIX  = ".journal";
+	private static final String KEY_TARGET	    = "install_target";
+
+	//~ Enumerations ---------------------------------------------------------------------------------------------------
+
+	/** how far an install got, as recorded in the journal */
+	private enum Step {PREPARING, PREPARED, SWITCHING;
+	}
+
 	//~ Methods --------------------------------------------------------------------------------------------------------
 
 	//downloadTempFile : 웹에서 다운로드한팡리
@@ -37,6 +57,9 @@ public final class InstallHelper {
 			String b64Target   = Base64.encodeBase64String(application.getAbsolutePath().getBytes());
 			String cmd		   = helperFile.getAbsolutePath() + " " + b64Download + " " + b64Target;
 
+			/* remembered, so the next start can clean up after an interrupted install */
+			ShineUpdate.instance().prefStore.store(KEY_TARGET, application.getAbsolutePath());
+
 			//b64Target:RDpcUHJvamVjdF9TV1RcU3VnYXJVcGRhdGVyXHRlc3Q=
 			//C:\Users\End-User\AppData\Local\Temp\org.shineupdate.helper-testXYZ3070740211324201107.jar QzpcVXNlcnNcRW5kLVVzZXJcQXBwRGF0YVxMb2NhbFxUZW1wXDE0NjAzNzU3NjU2NDgtMFxjcG9ydHMuZXhl RDpcUHJvamVjdF9TV1RcU3VnYXJVcGRhdGVyXHRlc3Q=
 			
@@ -55,11 +78,20 @@ public final class InstallHelper {
 			File target   = new File(new String(Base64.decodeBase64(args[1])));
 			Preconditions.checkArgument(download.exists(), "download doesn't exist '%s'", download);
 
-			/* delete old */
-			delete(target);
+			/* an earlier install that didn't finish */
+			recover(target);
 
-			/* copy new */
-			copy(download, target);
+			/* copy new, next to the old */
+			File next = sibling(target, NEXT_SUFFIX);
+			journal(target, Step.PREPARING);
+			if (next.exists()) {
+				FileHelper.deleteRecursively(next);
+			}
+			TreeCopier.copy(download, next, StaticConfig.INSTALL_THREADS);
+			journal(target, Step.PREPARED);
+
+			/* switch */
+			switchSlots(target);
 
 			/* start new */
 			Runtime.getRuntime().exec(target.getAbsolutePath());
@@ -71,64 +103,96 @@ public final class InstallHelper {
 		}
 	}
 
-	private static void delete(final File rootPath) {
-
-		List<File> workList = Lists.newArrayList();
-		workList.add(rootPath);
-		while (! workList.isEmpty()) {
-
-			File path = workList.get(workList.size() - 1);
-			if (path.isFile()) {
-				path.delete();
-				workList.remove(workList.size() - 1);
-			} else if (path.isDirectory()) {
-				if (path.list().length == 0) {
-					path.delete();
-					workList.remove(workList.size() - 1);
-				} else {
-					workList.addAll(Arrays.asList(path.listFiles()));
-				}
-			} else {
-				throw new IllegalStateException();
+	/**
+	 * Completes or rolls back an install that was interrupted. If the application is in place, a partial new slot is
+	 * removed, otherwise the new slot, if it was complete, or the previous one is moved there.
+	 */
+	public static void recover(final File application) throws IOException {
+
+		File journal = sibling(application, JOURNAL_SUFFIX);
+		if (! journal.isFile()) {
+			return;
+		}
+
+		Step step	  = Step.valueOf(Files.toString(journal, Charsets.UTF_8).trim());
+		File next	  = sibling(application, NEXT_SUFFIX);
+		File previous = sibling(application, PREVIOUS_SUFFIX);
+		if (! application.exists()) {
+			if ((step != Step.PREPARING) && next.exists()) {
+				move(next, application);
+			} else if (previous.exists()) {
+				move(previous, application);
 			}
 		}
+
+		/* the old version is still there or the new one is complete, anything left in the new slot is partial */
+		if (next.exists()) {
+			FileHelper.deleteRecursively(next);
+		}
+
+		journal.delete();
 	}
 
-	private static void copy(final File from, final File to) throws IOException {
+	/** recovers the install that was prepared last from this application, if any */
+	static void recover() {
+
+		String target = ShineUpdate.instance().prefStore.get(KEY_TARGET, (String) null);
+		if (target != null) {
+			try {
+				recover(new File(target));
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
 
-		List<File> copyList = Lists.newArrayList();
+	/** swaps the application with the version it replaced, which then becomes the previous one */
+	public static void rollback(final File application) throws IOException {
 
-		List<File> fromList = Lists.newArrayList();
-		fromList.add(from);
-		while (! fromList.isEmpty()) {
+		File previous = sibling(application, PREVIOUS_SUFFIX);
+		Preconditions.checkState(previous.exists(), "no previous version of '%s'", application);
+		recover(application);
 
-			File path = fromList.remove(0);
-			if (path.isFile()) {
-				copyList.add(path);
+		move(previous, sibling(application, NEXT_SUFFIX));
+		journal(application, Step.PREPARED);
+		switchSlots(application);
+	}
 
-			} else if (path.isDirectory()) {
-				fromList.addAll(Arrays.asList(path.listFiles()));
+	/* the new slot is complete, the old one is kept as previous */
+	private static void switchSlots(final File application) throws IOException {
 
-			} else {
-				throw new IllegalStateException();
-			}
+		File previous = sibling(application, PREVIOUS_SUFFIX);
+		if (previous.exists()) {
+			FileHelper.deleteRecursively(previous);
 		}
 
-		for (final File file : copyList) {
-			Files.copy(file, relativeFile(from, to, file));
+		journal(application, Step.SWITCHING);
+		if (application.exists()) {
+			move(application, previous);
 		}
+		move(sibling(application, NEXT_SUFFIX), application);
+
+		sibling(application, JOURNAL_SUFFIX).delete();
 	}
 
-	private static File relativeFile(final File oldRoot, final File newRoot, final File file) {
-		Preconditions.checkArgument(file.getAbsolutePath().startsWith(oldRoot.getAbsolutePath()));
+	/* written to a temporary file and renamed, so the journal is always complete */
+	private static void journal(final File application, final Step step) throws IOException {
+
+		File journal = sibling(application, JOURNAL_SUFFIX);
+		File temp    = sibling(application, JOURNAL_SUFFIX + ".tmp");
+		Files.write(step.name(), temp, Charsets.UTF_8);
+		java.nio.file.Files.move(
+			temp.toPath(),
+			journal.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
 
-		List<String> pathElements = Lists.newArrayList();
-		File parent				  = file;
-		while (! file.getParentFile().equals(parent)) {
-			pathElements.add(file.getParentFile().getName());
-			parent = file.getParentFile();
-		}
+	private static void move(final File from, final File to) throws IOException {
+		java.nio.file.Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
 
-		return new File(Joiner.on(File.separator).join(newRoot.getName(), pathElements));
+	private static File sibling(final File application, final String suffix) {
+		return new File(application.getAbsoluteFile().getParentFile(), application.getName() + suffix);
 	}
-}
\ No newline at end of file
+}
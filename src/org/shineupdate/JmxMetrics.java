@@ -0,0 +1,159 @@
+package org.shineupdate;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps statistics per phase since the start of the application and publishes them as the MXBean
+ * <code>org.shineupdate:type=UpdateMetrics,application=&lt;applicationUID&gt;</code>.
+ */
+public final class JmxMetrics implements MetricsListener, JmxMetricsMXBean {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L = LoggerFactory.getLogger(JmxMetrics.class);
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final Map<Phase, Statistics> statistics = new EnumMap<Phase, Statistics>(Phase.class);
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private JmxMetrics() {
+		this.reset();
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** registers with the platform MBeanServer, replacing an earlier registration for the same application */
+	public static JmxMetrics register(final String applicationUID) {
+
+		JmxMetrics metrics = new JmxMetrics();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name    =
+				new ObjectName("org.shineupdate:type=UpdateMetrics,application=" + ObjectName.quote(applicationUID));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+		} catch (final JMException e) {
+			L.warn("could not register metrics: {}", e.getMessage());
+		}
+
+		return metrics;
+	}
+
+	@Override
+	public synchronized void completed(final Phase phase, final long millis, final long bytes) {
+
+		Statistics stats = this.statistics.get(phase);
+		stats.count++;
+		stats.totalMillis = stats.totalMillis + millis;
+		stats.maxMillis   = Math.max(stats.maxMillis, millis);
+		stats.lastMillis  = millis;
+		stats.bytes		  = stats.bytes + bytes;
+	}
+
+	@Override
+	public synchronized void failed(final Phase phase, final long millis) {
+		this.statistics.get(phase).errors++;
+	}
+
+	@Override
+	public synchronized Map<String, Statistics> getPhases() {
+
+		Map<String, Statistics> phases = Maps.newLinkedHashMap();
+		for (final Map.Entry<Phase, Statistics> entry : this.statistics.entrySet()) {
+			phases.put(entry.getKey().toString(), entry.getValue().copy());
+		}
+
+		return ImmutableMap.copyOf(phases);
+	}
+
+	@Override
+	public synchronized long getErrors() {
+
+		long errors = 0;
+		for (final Statistics stats : this.statistics.values()) {
+			errors = errors + stats.errors;
+		}
+
+		return errors;
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (final Phase phase : Phase.values()) {
+			this.statistics.put(phase, new Statistics());
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	public static final class Statistics {
+
+		private long count;
+		private long errors;
+		private long totalMillis;
+		private long maxMillis;
+		private long lastMillis;
+		private long bytes;
+
+		private Statistics() {}
+
+		private Statistics copy() {
+
+			Statistics copy = new Statistics();
+			copy.count		 = this.count;
+			copy.errors		 = this.errors;
+			copy.totalMillis = this.totalMillis;
+			copy.maxMillis   = this.maxMillis;
+			copy.lastMillis  = this.lastMillis;
+			copy.bytes		 = this.bytes;
+
+			return copy;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getMeanMillis() {
+			return (count > 0) ? (totalMillis / count) : 0;
+		}
+
+		public long getMaxMillis() {
+			return maxMillis;
+		}
+
+		public long getLastMillis() {
+			return lastMillis;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** over all completed runs of the phase */
+		public long getBytesPerSecond() {
+			return (totalMillis > 0) ? ((bytes * 1000) / totalMillis) : 0;
+		}
+	}
+}
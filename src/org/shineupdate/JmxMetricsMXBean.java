@@ -0,0 +1,17 @@
+package org.shineupdate;
+
+import java.util.Map;
+
+/** management interface of {@link JmxMetrics} */
+public interface JmxMetricsMXBean {
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** statistics by phase */
+	public Map<String, JmxMetrics.Statistics> getPhases();
+
+	/** failures in all phases */
+	public long getErrors();
+
+	public void reset();
+}
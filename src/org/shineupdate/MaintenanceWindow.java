@@ -0,0 +1,87 @@
+package org.shineupdate;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A daily period of time in which background checks are allowed, e.g. outside of business hours. Windows may wrap
+ * around midnight (22:00 - 06:00), one that ends where it starts (00:00 - 24:00) spans the whole day.
+ */
+public final class MaintenanceWindow {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final int MINUTES_PER_DAY = 24 * 60;
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final int start;
+	private final int end;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private MaintenanceWindow(final int start, final int end) {
+		this.start     = start;
+		this.end	   = end;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static MaintenanceWindow between(final int startHour, final int startMinute, final int endHour,
+											final int endMinute) {
+		Preconditions.checkArgument((startHour >= 0) && (startHour < 24) && (endHour >= 0) && (endHour <= 24));
+		Preconditions.checkArgument((startMinute >= 0) && (startMinute < 60) && (endMinute >= 0) && (endMinute < 60));
+
+		return new MaintenanceWindow((startHour * 60) + startMinute, ((endHour * 60) + endMinute) % MINUTES_PER_DAY);
+	}
+
+	public boolean contains(final Calendar time) {
+
+		int minute = minuteOfDay(time);
+		if (this.start == this.end) {
+			return true;
+		} else if (this.start < this.end) {
+			return (minute >= this.start) && (minute < this.end);
+		} else {
+			return (minute >= this.start) || (minute < this.end);
+		}
+	}
+
+	/** @return 0 if <code>time</code> lies within the window */
+	public long millisUntilOpen(final Calendar time) {
+		if (this.contains(time)) {
+			return 0;
+		}
+
+		int minutes = (this.start - minuteOfDay(time) + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+		long millis = TimeUnit.MINUTES.toMillis(minutes);
+
+		/* to the beginning of the minute */
+		return millis - (time.get(Calendar.SECOND) * 1000L) - time.get(Calendar.MILLISECOND);
+	}
+
+	/** @return 0 if <code>time</code> lies outside the window, Long.MAX_VALUE if it never closes */
+	public long millisUntilClose(final Calendar time) {
+		if (! this.contains(time)) {
+			return 0;
+		} else if (this.start == this.end) {
+			return Long.MAX_VALUE;
+		}
+
+		int minutes = (this.end - minuteOfDay(time) + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+		long millis = TimeUnit.MINUTES.toMillis(minutes);
+
+		return millis - (time.get(Calendar.SECOND) * 1000L) - time.get(Calendar.MILLISECOND);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%02d:%02d-%02d:%02d", start / 60, start % 60, end / 60, end % 60);
+	}
+
+	private static int minuteOfDay(final Calendar time) {
+		return (time.get(Calendar.HOUR_OF_DAY) * 60) + time.get(Calendar.MINUTE);
+	}
+}
@@ -0,0 +1,137 @@
+package org.shineupdate;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+import org.appkit.preferences.PrefStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last version-description in the cache-directory and its validators in the PrefStore, so a check only
+ * transfers the description if it has changed on the server. It is transferred compressed if the server supports
+ * it and cached decompressed.
+ */
+public final class ManifestCache {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L				  = LoggerFactory.getLogger(ManifestCache.class);
+	private static final Object LOCK			  = new Object();
+	private static final String CACHE_FILE		  = "manifest";
+	private static final String KEY_URL			  = "manifest_url";
+	private static final String KEY_ETAG		  = "manifest_etag";
+	private static final String KEY_LAST_MODIFIED = "manifest_lastmodified";
+	private static final String KEY_VALIDATED     = "manifest_validated";
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private ManifestCache() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** fetches the description in the background, so that a following check can skip the network */
+	public static void prefetch(final String url) {
+		ShineUpdate.instance().executor.execute(
+			new Runnable() {
+					@Override
+					public void run() {
+						try {
+							L.debug("prefetching description from '{}'", url);
+							fetch(url);
+						} catch (final IOException e) {
+							L.debug("prefetching failed: {}", e.getMessage());
+						}
+					}
+				});
+	}
+
+	/**
+	 * Returns the cached description. It is revalidated with <code>If-None-Match</code> and
+	 * <code>If-Modified-Since</code>, unless that happened less than {@link StaticConfig#MANIFEST_FRESHNESS} ms ago.
+	 * A fetch that is already running (e.g. the prefetch) is waited for.
+	 */
+	public static File fetch(final String url) throws IOException {
+		synchronized (LOCK) {
+
+			PrefStore prefStore = ShineUpdate.instance().prefStore;
+			File cacheFile	    = new File(ShineUpdate.instance().cacheDir, CACHE_FILE);
+			boolean isCached    = cacheFile.isFile() && url.equals(prefStore.get(KEY_URL, (String) null));
+
+			long age = System.currentTimeMillis() - prefStore.get(KEY_VALIDATED, 0L);
+			if (isCached && (age >= 0) && (age < StaticConfig.MANIFEST_FRESHNESS)) {
+				L.debug("using description validated {} ms ago", age);
+				return cacheFile;
+			}
+
+			URLConnection conn = ShineUpdate.instance().transport.openCompressed(url);
+			if (conn instanceof HttpURLConnection) {
+				HttpURLConnection httpConn = (HttpURLConnection) conn;
+				if (isCached) {
+					String etag		    = prefStore.get(KEY_ETAG, (String) null);
+					String lastModified = prefStore.get(KEY_LAST_MODIFIED, (String) null);
+					if (etag != null) {
+						httpConn.setRequestProperty("If-None-Match", etag);
+					}
+					if (lastModified != null) {
+						httpConn.setRequestProperty("If-Modified-Since", lastModified);
+					}
+				}
+
+				int code = httpConn.getResponseCode();
+				if (isCached && (code == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+					L.debug("description not modified");
+					httpConn.getInputStream().close();
+					prefStore.store(KEY_VALIDATED, System.currentTimeMillis());
+					return cacheFile;
+
+				} else if (code != HttpURLConnection.HTTP_OK) {
+					ShineUpdate.instance().transport.release(httpConn);
+					throw new IOException("server answered " + code + " for '" + url + "'");
+				}
+			}
+
+			/* replace the cached description */
+			File tempFile	 = new File(ShineUpdate.instance().cacheDir, CACHE_FILE + ".tmp");
+			InputStream in   = ShineUpdate.instance().transport.decode(conn);
+			OutputStream out = null;
+			try {
+				out = new FileOutputStream(tempFile);
+				ByteStreams.copy(in, out);
+			} finally {
+				in.close();
+				if (out != null) {
+					out.close();
+				}
+			}
+
+			if ((cacheFile.exists() && ! cacheFile.delete()) || ! tempFile.renameTo(cacheFile)) {
+				throw new IOException("could not replace '" + cacheFile + "'");
+			}
+
+			storeOrRemove(prefStore, KEY_ETAG, conn.getHeaderField("ETag"));
+			storeOrRemove(prefStore, KEY_LAST_MODIFIED, conn.getHeaderField("Last-Modified"));
+			prefStore.store(KEY_URL, url);
+			prefStore.store(KEY_VALIDATED, System.currentTimeMillis());
+
+			return cacheFile;
+		}
+	}
+
+	private static void storeOrRemove(final PrefStore prefStore, final String key, final String value) {
+		if (value != null) {
+			prefStore.store(key, value);
+		} else {
+			prefStore.remove(key);
+		}
+	}
+}
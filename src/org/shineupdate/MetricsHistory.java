@@ -0,0 +1,62 @@
+package org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends every phase to a local file, one tab-separated line per phase:
+ * <code>&lt;time in ms since 1970&gt; &lt;phase&gt; &lt;ok|error&gt; &lt;ms&gt; &lt;bytes&gt;</code>. Percentiles can
+ * be computed from it later, without a service to report to. Once the file exceeds
+ * {@link StaticConfig#METRICS_HISTORY_MAX_SIZE} it is moved to <code>&lt;file&gt;.1</code> and a new one is begun.
+ */
+public final class MetricsHistory implements MetricsListener {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L = LoggerFactory.getLogger(MetricsHistory.class);
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final File file;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private MetricsHistory(final File file) {
+		this.file = file;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static MetricsHistory create(final File file) {
+		return new MetricsHistory(file);
+	}
+
+	@Override
+	public void completed(final Phase phase, final long millis, final long bytes) {
+		this.append(phase, "ok", millis, bytes);
+	}
+
+	@Override
+	public void failed(final Phase phase, final long millis) {
+		this.append(phase, "error", millis, 0);
+	}
+
+	private synchronized void append(final Phase phase, final String result, final long millis, final long bytes) {
+
+		String line = System.currentTimeMillis() + "\t" + phase + "\t" + result + "\t" + millis + "\t" + bytes + "\n";
+		try {
+			if (this.file.length() > StaticConfig.METRICS_HISTORY_MAX_SIZE) {
+				Files.move(this.file, new File(this.file.getPath() + ".1"));
+			}
+			Files.append(line, this.file, Charsets.UTF_8);
+		} catch (final IOException e) {
+			L.warn("could not write metrics to '{}': {}", this.file, e.getMessage());
+		}
+	}
+}
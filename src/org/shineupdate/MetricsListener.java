@@ -0,0 +1,33 @@
+package org.shineupdate;
+
+/**
+ * Receives the durations of the phases of an update, e.g. to find out where the time goes across many installations.
+ * Built in are {@link JmxMetrics} and {@link MetricsHistory}, listeners are passed to
+ * {@link ShineUpdate#instantiate(String, String, String, String, ShineUpdate.ShutdownHook, MetricsListener...)}.
+ * Calls come from the updating threads and should return quickly.
+ */
+public interface MetricsListener {
+
+	//~ Enumerations ---------------------------------------------------------------------------------------------------
+
+	public enum Phase {MANIFEST, DOWNLOAD, HASH, UNZIP, INSTALL_PREPARE, SHUTDOWN_HOOK, LAUNCH;
+	}
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	public static final MetricsListener NO_OP =
+		new MetricsListener() {
+			@Override
+			public void completed(final Phase phase, final long millis, final long bytes) {}
+
+			@Override
+			public void failed(final Phase phase, final long millis) {}
+		};
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** @param bytes transferred or processed in the phase, 0 if that doesn't apply */
+	public void completed(final Phase phase, final long millis, final long bytes);
+
+	public void failed(final Phase phase, final long millis);
+}
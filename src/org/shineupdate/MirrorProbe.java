@@ -0,0 +1,131 @@
+package org.shineupdate;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Orders the mirrors of a download by their time to first byte. All mirrors are asked for the first byte of the
+ * payload at once, mirrors that fail or don't answer within {@link StaticConfig#CONNECT_TIMEOUT} go to the end, they
+ * are still good for failing over to.
+ */
+final class MirrorProbe {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L = LoggerFactory.getLogger(MirrorProbe.class);
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private MirrorProbe() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** @return the mirrors, fastest first */
+	public static ImmutableList<String> rank(final List<String> urls) throws InterruptedException {
+		if (urls.size() < 2) {
+			return ImmutableList.copyOf(urls);
+		}
+
+		List<FutureTask<Long>> probes = Lists.newArrayList();
+		for (final String url : urls) {
+			FutureTask<Long> probe =
+				new FutureTask<Long>(
+					new Callable<Long>() {
+						@Override
+						public Long call() throws IOException {
+							return timeToFirstByte(url);
+						}
+					});
+			ShineUpdate.instance().executor.execute(probe);
+			probes.add(probe);
+		}
+
+		final List<Long> nanos = Lists.newArrayList();
+		long deadline		   = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(StaticConfig.CONNECT_TIMEOUT);
+		for (int i = 0; i < urls.size(); i++) {
+			long ttfb = Long.MAX_VALUE;
+			try {
+				ttfb = probes.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (final ExecutionException e) {
+				L.debug("mirror '{}' failed: {}", urls.get(i), e.getCause().getMessage());
+			} catch (final TimeoutException e) {
+				L.debug("mirror '{}' didn't answer in time", urls.get(i));
+				probes.get(i).cancel(true);
+			}
+			nanos.add(ttfb);
+		}
+
+		/* stable, so mirrors that are equally bad stay in the order of the description */
+		List<Integer> order = Lists.newArrayList();
+		for (int i = 0; i < urls.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(
+			order,
+			new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer first, final Integer second) {
+					return Long.compare(nanos.get(first), nanos.get(second));
+				}
+			});
+
+		ImmutableList.Builder<String> ranked = ImmutableList.builder();
+		for (final int index : order) {
+			ranked.add(urls.get(index));
+		}
+		L.debug("mirrors by time to first byte: {}", ranked.build());
+
+		return ranked.build();
+	}
+
+	/** a probe answered with 206 leaves its connection in the pool, for the download that follows */
+	private static long timeToFirstByte(final String url) throws IOException {
+
+		HttpTransport transport = ShineUpdate.instance().transport;
+		long started			= System.nanoTime();
+		URLConnection conn		= transport.open(url);
+		boolean partial			= false;
+		if (conn instanceof HttpURLConnection) {
+			conn.setRequestProperty("Range", "bytes=0-0");
+
+			int code = ((HttpURLConnection) conn).getResponseCode();
+			if ((code != HttpURLConnection.HTTP_OK) && (code != HttpURLConnection.HTTP_PARTIAL)) {
+				transport.release(conn);
+				throw new IOException("server answered " + code + " for '" + url + "'");
+			}
+			partial = (code == HttpURLConnection.HTTP_PARTIAL);
+		}
+
+		/* a server that ignores the range sends everything, the connection is dropped after the first byte */
+		InputStream in = conn.getInputStream();
+		try {
+			in.read();
+		} finally {
+			if (partial || ! (conn instanceof HttpURLConnection)) {
+				transport.release(conn);
+			} else {
+				transport.discard(conn);
+			}
+		}
+
+		return System.nanoTime() - started;
+	}
+}
@@ -0,0 +1,201 @@
+package org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The descriptions of the versions released between the running one and the latest, for a cumulative changelog.
+ * <p>
+ * The latest description links them as its release index (see {@link VersionDescription#getHistory()}), all versions
+ * listed before the running one are fetched concurrently. A released description doesn't change, so each is
+ * downloaded once and kept in the cache-directory.
+ */
+final class ReleaseHistory {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		   = LoggerFactory.getLogger(ReleaseHistory.class);
+	private static final String DIRECTORY = "history";
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final ImmutableList<String> versions;
+	private final ImmutableList<ListenableFutureTask<VersionDescription>> descriptions;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private ReleaseHistory(final ImmutableList<String> versions,
+						   final ImmutableList<ListenableFutureTask<VersionDescription>> descriptions) {
+		this.versions	  = versions;
+		this.descriptions = descriptions;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** starts fetching the intermediate versions of <code>latest</code> */
+	public static ReleaseHistory fetch(final VersionDescription latest) {
+
+		String currentVersion = ShineUpdate.instance().currentVersion;
+
+		ImmutableList.Builder<String> versions									 = ImmutableList.builder();
+		ImmutableList.Builder<ListenableFutureTask<VersionDescription>> descriptions = ImmutableList.builder();
+
+		/* versions are only compared for equality, without the running one it's unknown which are newer */
+		boolean listed = false;
+		for (final String version : latest.getHistory().keySet()) {
+			listed = listed || version.equalsIgnoreCase(currentVersion);
+		}
+		if (! listed) {
+			L.debug("running version {} isn't in the release index, showing the latest changelog only", currentVersion);
+			return new ReleaseHistory(versions.build(), descriptions.build());
+		}
+
+		for (final Entry<String, String> entry : latest.getHistory().entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(currentVersion)) {
+				break;
+			} else if (entry.getKey().equalsIgnoreCase(latest.getVersion())) {
+				continue;
+			}
+
+			final String url = entry.getValue();
+			ListenableFutureTask<VersionDescription> task =
+				ListenableFutureTask.create(
+					new Callable<VersionDescription>() {
+							@Override
+							public VersionDescription call() throws IOException {
+								VersionDescription versionDesc =
+									VersionDescription.parse(Files.newReaderSupplier(load(url), Charsets.UTF_8));
+
+								/* parsed here rather than on the ui-thread */
+								versionDesc.getSections();
+								ImageCache.prefetch(versionDesc);
+
+								return versionDesc;
+							}
+						});
+			ShineUpdate.instance().executor.execute(task);
+
+			versions.add(entry.getKey());
+			descriptions.add(task);
+		}
+
+		ReleaseHistory history = new ReleaseHistory(versions.build(), descriptions.build());
+		L.debug("fetching changelogs of intermediate versions {}", history.versions);
+
+		return history;
+	}
+
+	/** the intermediate versions, newest first */
+	public ImmutableList<String> getVersions() {
+		return this.versions;
+	}
+
+	/** @return null if the description of the version hasn't arrived yet or couldn't be loaded */
+	public VersionDescription get(final int index) {
+
+		ListenableFutureTask<VersionDescription> task = this.descriptions.get(index);
+		if (! task.isDone()) {
+			return null;
+		}
+
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final ExecutionException e) {
+			L.warn("could not load changelog of version {}: {}", this.versions.get(index), e.getCause().getMessage());
+			return null;
+		}
+	}
+
+	/** runs <code>listener</code> once the description of the version has arrived or failed */
+	public void whenDone(final int index, final Runnable listener, final Executor executor) {
+		this.descriptions.get(index).addListener(listener, executor);
+	}
+
+	/** from the cache-directory, downloaded if it isn't there */
+	private static File load(final String url) throws IOException {
+
+		File file = new File(
+				new File(ShineUpdate.instance().cacheDir, DIRECTORY),
+				Hashing.sha1().hashString(url, Charsets.UTF_8).toString());
+		if (file.isFile()) {
+			return file;
+		}
+
+		L.debug("downloading description from '{}'", url);
+
+		HttpTransport transport = ShineUpdate.instance().transport;
+		URLConnection conn	    = transport.openCompressed(url);
+		if (conn instanceof HttpURLConnection) {
+			int code = ((HttpURLConnection) conn).getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				transport.release(conn);
+				throw new IOException("server answered " + code + " for '" + url + "'");
+			}
+		}
+
+		if (! file.getParentFile().isDirectory() && ! file.getParentFile().mkdirs()) {
+			transport.discard(conn);
+			throw new IOException("could not create '" + file.getParentFile() + "'");
+		}
+
+		/* of its own, other processes of the application share the cache-directory */
+		File tempFile;
+		try {
+			tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		} catch (final IOException e) {
+			transport.discard(conn);
+			throw e;
+		}
+
+		InputStream in   = transport.decode(conn);
+		OutputStream out = null;
+		boolean copied   = false;
+		try {
+			out = new FileOutputStream(tempFile);
+			ByteStreams.copy(in, out);
+			copied = true;
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+			if (! copied) {
+				tempFile.delete();
+			}
+		}
+
+		/* another process may have been quicker */
+		if (! tempFile.renameTo(file)) {
+			tempFile.delete();
+			if (! file.isFile()) {
+				throw new IOException("could not create '" + file + "'");
+			}
+		}
+
+		return file;
+	}
+}
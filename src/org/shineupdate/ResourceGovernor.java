@@ -0,0 +1,135 @@
+package org.shineupdate;
+
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps updates that run in the background from competing with the application: received bytes and bytes hashed,
+ * patched or extracted pass token-buckets limited to a bandwidth and a disk-rate, connections and extracting threads
+ * are capped. The limits are set through {@link ShineUpdate#limitBackground(long, long, int)} and are read on every
+ * call, so they can be changed at any time.
+ * <p>
+ * While the user is waiting for an update (between {@link #beginInteractive()} and {@link #endInteractive()}) there
+ * are no limits, threads held back at that moment are released.
+ */
+final class ResourceGovernor {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	/* a bucket holds at most this much of its rate */
+	private static final double BURST_SECONDS = 0.25;
+
+	/* never limited, there's nothing to set its limits through */
+	private static final ResourceGovernor UNLIMITED = new ResourceGovernor();
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final Bucket network = new Bucket();
+	private final Bucket disk    = new Bucket();
+	private volatile int interactive;
+	private volatile long bandwidth;
+	private volatile long diskRate;
+	private volatile int threads;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private ResourceGovernor() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static ResourceGovernor create() {
+		return new ResourceGovernor();
+	}
+
+	/** the governor of the {@link ShineUpdate} instance, without one (e.g. in DeltaPatch's main) nothing is limited */
+	public static ResourceGovernor current() {
+
+		ShineUpdate instance = ShineUpdate.instanceOrNull();
+
+		return (instance != null) ? instance.governor : UNLIMITED;
+	}
+
+	/** 0 for any of them means no limit */
+	public void limit(final long bandwidth, final long diskRate, final int threads) {
+		this.bandwidth     = bandwidth;
+		this.diskRate	   = diskRate;
+		this.threads	   = threads;
+	}
+
+	/** lifts the limits until the matching {@link #endInteractive()} */
+	public synchronized void beginInteractive() {
+		this.interactive++;
+		this.notifyAll();
+	}
+
+	public synchronized void endInteractive() {
+		this.interactive--;
+	}
+
+	/** to be called after receiving <code>count</code> bytes, blocks until they fit the bandwidth */
+	public void acquireNetwork(final int count) throws InterruptedIOException {
+		this.acquire(this.network, count, this.bandwidth);
+	}
+
+	/** to be called after reading or writing <code>count</code> bytes, blocks until they fit the disk-rate */
+	public void acquireDisk(final int count) throws InterruptedIOException {
+		this.acquire(this.disk, count, this.diskRate);
+	}
+
+	/** @return how many of <code>wanted</code> threads or connections to use */
+	public int threads(final int wanted) {
+		int limit = this.threads;
+		if ((this.interactive > 0) || (limit <= 0)) {
+			return wanted;
+		}
+
+		return Math.max(1, Math.min(wanted, limit));
+	}
+
+	/*
+	 * the bytes are taken at once, the bucket may go into debt. A caller waits until its debt is paid off, so
+	 * concurrent callers share the rate and a large chunk doesn't need a large bucket.
+	 */
+	private void acquire(final Bucket bucket, final int count, final long rate)
+				  throws InterruptedIOException {
+		if ((rate <= 0) || (this.interactive > 0)) {
+			return;
+		}
+
+		synchronized (this) {
+			bucket.refill(rate);
+			bucket.tokens = bucket.tokens - count;
+
+			try {
+				while (bucket.tokens < 0) {
+					this.wait(Math.max(1, (long) ((-bucket.tokens * 1000) / rate)));
+					if (this.interactive > 0) {
+						bucket.tokens = 0;
+						return;
+					}
+					bucket.refill(rate);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while throttled");
+			}
+		}
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	private static final class Bucket {
+
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		private void refill(final long rate) {
+
+			long now	  = System.nanoTime();
+			double seconds = (now - this.refilled) / (double) TimeUnit.SECONDS.toNanos(1);
+			this.tokens   = Math.min(this.tokens + (seconds * rate), rate * BURST_SECONDS);
+			this.refilled = now;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.shineupdate;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Payloads shared by all processes that use {@link StaticConfig#SHARED_CACHE_DIR}, e.g. the sessions of a terminal
+ * server or, on a network share, a whole site. Payloads are keyed by their hash and guarded by a lock-file per hash:
+ * the first process to take the lock downloads, the others wait for it and copy the verified payload. Only payloads
+ * whose digest matched are published, payloads that haven't been used for {@link StaticConfig#SHARED_CACHE_RETENTION}
+ * ms are removed.
+ * <p>
+ * The lock is an OS file-lock, on a network share it only excludes other hosts if the share supports locking.
+ */
+final class SharedCache {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		  = LoggerFactory.getLogger(SharedCache.class);
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int BUFFER_SIZE  = 1024*64;
+	private static final long LOCK_POLL   = 500;
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final File payload;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private SharedCache(final File payload, final RandomAccessFile lockFile, final FileLock lock) {
+		this.payload  = payload;
+		this.lockFile = lockFile;
+		this.lock	  = lock;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Takes the lock for <code>hash</code>, waiting while another process holds it. The lock is polled for, so an
+	 * interrupt (e.g. from {@link Downloader#stopDownload()}) ends the wait.
+	 *
+	 * @return null if there is no shared cache
+	 */
+	public static SharedCache lock(final String hash) throws IOException {
+		if (StaticConfig.SHARED_CACHE_DIR == null) {
+			return null;
+		}
+
+		File dir = new File(StaticConfig.SHARED_CACHE_DIR);
+		if (! dir.isDirectory() && ! dir.mkdirs()) {
+			L.warn("could not create shared cache '{}', not sharing downloads", dir);
+			return null;
+		}
+
+		RandomAccessFile lockFile = new RandomAccessFile(new File(dir, hash + LOCK_SUFFIX), "rw");
+		try {
+			FileLock lock = lockFile.getChannel().tryLock();
+			if (lock == null) {
+				L.debug("another process is downloading {}, waiting for it", hash);
+			}
+			while (lock == null) {
+				Thread.sleep(LOCK_POLL);
+				lock = lockFile.getChannel().tryLock();
+			}
+
+			return new SharedCache(new File(dir, hash), lockFile, lock);
+
+		} catch (final InterruptedException e) {
+			lockFile.close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the lock of " + hash);
+
+		} catch (final IOException e) {
+			lockFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies the payload, if another process has published it, and computes its digest in the same pass.
+	 *
+	 * @return the digest of the copy or null if the payload isn't in the shared cache
+	 */
+	public HashCode copyTo(final File target, final HashFunction digest, final DownloadProgress progress)
+					throws IOException {
+		if (! this.payload.isFile()) {
+			return null;
+		}
+
+		L.debug("copying payload from shared cache '{}'", this.payload);
+		this.payload.setLastModified(System.currentTimeMillis());
+
+		ResourceGovernor governor = ShineUpdate.instance().governor;
+		File temp				  = new File(target.getPath() + TEMP_SUFFIX);
+		Hasher hasher			  = digest.newHasher();
+		byte buffer[]			  = new byte[BUFFER_SIZE];
+		InputStream in			  = new FileInputStream(this.payload);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				progress.start(this.payload.length(), 0);
+
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					hasher.putBytes(buffer, 0, count);
+					out.write(buffer, 0, count);
+					governor.acquireDisk(count);
+					progress.add(count);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		if (! temp.renameTo(target)) {
+			temp.delete();
+			throw new IOException("could not rename '" + temp + "' to '" + target + "'");
+		}
+
+		return hasher.hash();
+	}
+
+	/** makes a verified payload available to the other processes, failing to do so only costs them a download */
+	public void publish(final File file) {
+		File temp = new File(this.payload.getPath() + TEMP_SUFFIX);
+		try {
+			Files.copy(file, temp);
+			if ((this.payload.exists() && ! this.payload.delete()) || ! temp.renameTo(this.payload)) {
+				throw new IOException("could not rename '" + temp + "' to '" + this.payload + "'");
+			}
+			L.debug("published payload to shared cache '{}'", this.payload);
+
+		} catch (final IOException e) {
+			L.warn("could not publish to shared cache: {}", e.getMessage());
+			temp.delete();
+		}
+
+		this.removeUnused();
+	}
+
+	/** removes a payload that turned out to be corrupt, to be called while holding the lock */
+	public void discard() {
+		L.warn("removing corrupt payload '{}' from shared cache", this.payload);
+		if (! this.payload.delete() && this.payload.exists()) {
+			L.warn("could not delete '{}'", this.payload);
+		}
+	}
+
+	public void release() {
+		try {
+			this.lock.release();
+		} catch (final IOException e) {
+			L.warn("could not release '{}'", this.payload + LOCK_SUFFIX);
+		} finally {
+			try {
+				this.lockFile.close();
+			} catch (final IOException e) {}
+		}
+	}
+
+	/* payloads of other releases, unless a process still uses them. Lock-files are left alone, they may be held */
+	private void removeUnused() {
+
+		File files[] = this.payload.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long oldest = System.currentTimeMillis() - StaticConfig.SHARED_CACHE_RETENTION;
+		for (final File file : files) {
+			if (file.isFile() && ! file.getName().endsWith(LOCK_SUFFIX) && (file.lastModified() < oldest)) {
+				L.debug("removing unused payload '{}' from shared cache", file);
+				file.delete();
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package org.shineupdate;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
+import java.io.File;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -27,24 +29,39 @@ public final class ShineUpdate {
 
 	protected final PrefStore prefStore;
 	protected final ShutdownHook shutdownHook;
+	protected final MetricsListener metrics;
 	protected final String url;
 	protected final String applicationName;
 	protected final String applicationUID;
 	protected final String currentVersion;
 	protected final Executor executor;
+	protected final ResourceGovernor governor;
+	protected final HttpTransport transport;
+	protected final File cacheDir;
+	private CheckScheduler checkScheduler;
+	private volatile File installLocation;
 
 	//~ Constructors ---------------------------------------------------------------------------------------------------
 
 	private ShineUpdate(final String url, final String applicationName, final String applicationUID,
-						final String currentVersion, final ShutdownHook shutdownHook) {
+						final String currentVersion, final ShutdownHook shutdownHook, final MetricsListener metrics) {
 		this.prefStore				    = PrefStore.createJavaPrefStore(StaticConfig.PREF_NODE + "/" + applicationUID);
 		this.executor				    = Executors.newCachedThreadPool(LoggingThreadFactory.create());
+		this.governor				    = ResourceGovernor.create();
+		this.transport				    = HttpTransport.create();
 
 		this.url					    = url;
 		this.applicationName		    = applicationName;
 		this.applicationUID			    = applicationUID;
 		this.currentVersion			    = currentVersion;
 		this.shutdownHook			    = shutdownHook;
+		this.metrics				    = metrics;
+
+		/* directory for partial and completed downloads, survives restarts of the application */
+		this.cacheDir = new File(System.getProperty("java.io.tmpdir"), StaticConfig.TEMP_FILE_PREFIX + applicationUID);
+		if (! this.cacheDir.isDirectory() && ! this.cacheDir.mkdirs()) {
+			L.warn("could not create cache-directory '{}'", this.cacheDir);
+		}
 
 		L.debug(
 			"initialized shine-update, running application (id/version): '{}'/'{}'",
@@ -61,8 +78,40 @@ public final class ShineUpdate {
 
 	public static void instantiate(final String url, final String applicationName, final String applicationUID,
 								   final String currentVersion, final ShutdownHook hook) {
+		instantiate(url, applicationName, applicationUID, currentVersion, hook, new MetricsListener[0]);
+	}
+
+	/** @param listeners receive the durations of the update phases, e.g. {@link JmxMetrics} */
+	public static void instantiate(final String url, final String applicationName, final String applicationUID,
+								   final String currentVersion, final ShutdownHook hook,
+								   final MetricsListener... listeners) {
 		Preconditions.checkState(instance == null, "already instantiated, call instance()");
-		instance = new ShineUpdate(url, applicationName, applicationUID, currentVersion, hook);
+		instance =
+			new ShineUpdate(
+				url,
+				applicationName,
+				applicationUID,
+				currentVersion,
+				hook,
+				(listeners.length == 0) ? MetricsListener.NO_OP : new Metrics(ImmutableList.copyOf(listeners)));
+
+		/* an install that was interrupted is completed or rolled back */
+		instance.executor.execute(
+			new Runnable() {
+					@Override
+					public void run() {
+						try {
+							InstallHelper.recover();
+						} catch (final RuntimeException e) {
+							L.warn("could not recover an interrupted install: {}", e.getMessage());
+						}
+					}
+				});
+
+		/* warm the cache, so a check right after startup doesn't have to wait for the network */
+		if (StaticConfig.PREFETCH_MANIFEST) {
+			ManifestCache.prefetch(url);
+		}
 	}
 
 	public static ShineUpdate instance() {
@@ -70,22 +119,78 @@ public final class ShineUpdate {
 		return instance;
 	}
 
-	public void runInBackground(final long period, final TimeUnit timeUnit) {}
+	/** null before instantiate(), for helpers that are also used without shine-update, e.g. by tools */
+	static ShineUpdate instanceOrNull() {
+		return instance;
+	}
+
+	/**
+	 * Where the application is installed, an update replaces it. Until this is set, updates are offered and
+	 * downloaded but can't be installed.
+	 */
+	public void installTo(final File application) {
+		this.installLocation = application;
+	}
+
+	/** @return null if {@link #installTo(File)} hasn't been called */
+	File getInstallLocation() {
+		return this.installLocation;
+	}
+
+	/**
+	 * Limits updates that run in the background, so they don't compete with the application. Checks that show
+	 * notifications aren't limited, neither is the download once the user has asked for it.
+	 *
+	 * @param bandwidth received bytes per second, 0 for no limit
+	 * @param diskRate bytes hashed, patched or extracted per second, 0 for no limit
+	 * @param threads connections and extracting threads, 0 for no limit
+	 */
+	public void limitBackground(final long bandwidth, final long diskRate, final int threads) {
+		this.governor.limit(bandwidth, diskRate, threads);
+	}
+
+	public void runInBackground(final long period, final TimeUnit timeUnit) {
+		this.runInBackground(period, timeUnit, new MaintenanceWindow[0]);
+	}
+
+	/**
+	 * Checks silently every <code>period</code>, with some random jitter. Checks that fail are repeated earlier with
+	 * an exponential backoff.
+	 *
+	 * @param windows if given, checks only run within one of these
+	 */
+	public synchronized void runInBackground(final long period, final TimeUnit timeUnit,
+											 final MaintenanceWindow... windows) {
+		if (this.checkScheduler != null) {
+			this.checkScheduler.stop();
+		}
+		this.checkScheduler = CheckScheduler.start(period, timeUnit, ImmutableList.copyOf(windows));
+	}
 
 	/**
 	 * Performs a version check.
 	 */
 	public void check(final boolean showNotifications) {
+		this.check(showNotifications, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param stagingDeadline when a download in the background is stopped, in milliseconds since the epoch
+	 * @return false if the check or staging the update failed
+	 */
+	boolean check(final boolean showNotifications, final long stagingDeadline) {
 		L.debug("starting check, {}showing notifications", showNotifications ? "" : "not ");
 
-		Updater updater = new Updater(showNotifications);
+		/* notifications need the Display, a silent check from a background thread needs none */
+		Display display = showNotifications ? Display.getDefault() : Display.getCurrent();
 
-		if (Display.getDefault().getThread() == Thread.currentThread()) {
+		/* created after the Display, it wakes the event-loop when done */
+		Updater updater = new Updater(showNotifications, stagingDeadline);
+		if ((display != null) && (display.getThread() == Thread.currentThread())) {
 			this.executor.execute(updater);
 
 			L.debug("we are on the SWT-Thread, holding the event-loop here");
 
-			Display display = Display.getCurrent();
 			while (! display.isDisposed() && (updater.getReports().poll() == null)) {
 				if (! display.readAndDispatch()) {
 					display.sleep();
@@ -96,6 +201,8 @@ public final class ShineUpdate {
 		} else {
 			updater.run();
 		}
+
+		return ! updater.hasFailed();
 	}
 
 	//~ Inner Interfaces -----------------------------------------------------------------------------------------------
@@ -111,4 +218,38 @@ public final class ShineUpdate {
 		/** will be called before shutting the JVM down for an update */
 		public void shutdownForUpdate();
 	}
-}
\ No newline at end of file
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	/** hands every measurement to all listeners, a failing listener doesn't disturb the update */
+	private static final class Metrics implements MetricsListener {
+
+		private final ImmutableList<MetricsListener> listeners;
+
+		private Metrics(final ImmutableList<MetricsListener> listeners) {
+			this.listeners = listeners;
+		}
+
+		@Override
+		public void completed(final Phase phase, final long millis, final long bytes) {
+			for (final MetricsListener listener : this.listeners) {
+				try {
+					listener.completed(phase, millis, bytes);
+				} catch (final RuntimeException e) {
+					L.warn(e.getMessage(), e);
+				}
+			}
+		}
+
+		@Override
+		public void failed(final Phase phase, final long millis) {
+			for (final MetricsListener listener : this.listeners) {
+				try {
+					listener.failed(phase, millis);
+				} catch (final RuntimeException e) {
+					L.warn(e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
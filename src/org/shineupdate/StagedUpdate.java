@@ -0,0 +1,116 @@
+package org.shineupdate;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.appkit.preferences.PrefStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A verified and extracted update, waiting in the cache-directory to be installed. Silent checks prepare it in the
+ * background, so when the user is asked, installing only takes a restart. It is kept across restarts of the
+ * application until it is installed or a newer version supersedes it.
+ */
+final class StagedUpdate {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L				= LoggerFactory.getLogger(StagedUpdate.class);
+	private static final String STAGED_SUFFIX   = ".staged";
+	private static final String KEY_VERSION	    = "staged_version";
+	private static final String KEY_HASH	    = "staged_hash";
+	private static final String KEY_APPLICATION = "staged_application";
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private StagedUpdate() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Staged builds of other versions, or of the version that is running now, are removed.
+	 *
+	 * @return the staged application of <code>versionDesc</code> or null
+	 */
+	public static File find(final VersionDescription versionDesc) {
+
+		PrefStore prefStore = ShineUpdate.instance().prefStore;
+		String version	    = prefStore.get(KEY_VERSION, (String) null);
+		String hash		    = prefStore.get(KEY_HASH, (String) null);
+		String application  = prefStore.get(KEY_APPLICATION, (String) null);
+		if ((version == null) || (hash == null) || (application == null)) {
+			return null;
+		}
+
+		if (version.equals(ShineUpdate.instance().currentVersion)
+				|| ! version.equals(versionDesc.getVersion()) || ! hash.equalsIgnoreCase(versionDesc.getDownloadHash())) {
+			L.debug("staged version {} is installed or superseded", version);
+			discard();
+			return null;
+		}
+
+		File file = new File(application);
+		if (! file.exists()) {
+			L.warn("staged application '{}' is gone", file);
+			discard();
+			return null;
+		}
+
+		return file;
+	}
+
+	/**
+	 * Moves a verified archive into the staging area.
+	 *
+	 * @param extracted the tree extracted while downloading or null, then the archive is extracted now
+	 * @return the staged application
+	 */
+	public static File stage(final VersionDescription versionDesc, final File archive, final File extracted,
+							 final DownloadProgress progress)
+					  throws IOException {
+		discard();
+
+		File dir = new File(ShineUpdate.instance().cacheDir, versionDesc.getDownloadHash() + STAGED_SUFFIX);
+		FileHelper.deleteRecursively(dir);
+		if ((extracted == null) || ! extracted.renameTo(dir)) {
+			if (extracted != null) {
+				FileHelper.deleteRecursively(extracted);
+			}
+			if (! dir.mkdirs()) {
+				throw new IOException("could not create '" + dir + "'");
+			}
+			ZipExtractor.extract(archive, dir, progress);
+		}
+		File application = FileHelper.findApplication(dir);
+
+		/* recorded last, a tree without these entries is incomplete */
+		PrefStore prefStore = ShineUpdate.instance().prefStore;
+		prefStore.store(KEY_APPLICATION, application.getPath());
+		prefStore.store(KEY_HASH, versionDesc.getDownloadHash());
+		prefStore.store(KEY_VERSION, versionDesc.getVersion());
+		L.debug("staged version {} at '{}'", versionDesc.getVersion(), application);
+
+		return application;
+	}
+
+	/** removes the staged build, if there is one */
+	public static void discard() {
+
+		PrefStore prefStore = ShineUpdate.instance().prefStore;
+		String hash		    = prefStore.get(KEY_HASH, (String) null);
+		prefStore.remove(KEY_VERSION);
+		prefStore.remove(KEY_HASH);
+		prefStore.remove(KEY_APPLICATION);
+
+		if (hash != null) {
+			File dir = new File(ShineUpdate.instance().cacheDir, hash + STAGED_SUFFIX);
+			try {
+				FileHelper.deleteRecursively(dir);
+			} catch (final IOException e) {
+				L.warn("could not delete '{}'", dir);
+			}
+		}
+	}
+}
@@ -6,5 +6,27 @@ public final class StaticConfig {
 
 	public static String PREF_NODE		    = "org/shineupdate";
 	public static String TEMP_FILE_PREFIX   = "org.shineupdate.";
-	public static int DOWNLOAD_BUFFER_SIZE = 1024*50;
+	public static int DOWNLOAD_BUFFER_MIN  = 1024*8;
+	public static int DOWNLOAD_BUFFER_MAX  = 1024*256;
+	public static int DOWNLOAD_RETRIES		= 5;
+	public static long DOWNLOAD_RETRY_DELAY = 1000;
+	public static boolean KEEP_CANCELLED_DOWNLOADS = true;
+	public static int DOWNLOAD_CONNECTIONS  = 4;
+	public static int DOWNLOAD_SEGMENT_MIN_SIZE = 1024*1024*8;
+	public static boolean EXTRACT_WHILE_DOWNLOADING = true;
+	public static boolean STAGE_IN_BACKGROUND = true;
+	public static int INSTALL_THREADS      = 4;
+	public static String SHARED_CACHE_DIR  = null;
+	public static long SHARED_CACHE_RETENTION = 1000L*60*60*24*30;
+	public static long IMAGE_CACHE_MAX_SIZE = 1024*1024*16;
+	public static boolean PREFETCH_MANIFEST = false;
+	public static long MANIFEST_FRESHNESS   = 1000*60;
+	public static double CHECK_JITTER	    = 0.1;
+	public static long CHECK_RETRY_DELAY    = 1000*60;
+	public static long METRICS_HISTORY_MAX_SIZE = 1024*1024;
+	public static int PROGRESS_INTERVAL	    = 100;
+	public static int STALL_TIMEOUT		    = 1000*5;
+	public static int HTTP_IDLE_CONNECTIONS = 8;
+	public static int CONNECT_TIMEOUT	    = 1000*15;
+	public static int READ_TIMEOUT		    = 1000*30;
 }
\ No newline at end of file
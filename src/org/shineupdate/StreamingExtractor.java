@@ -0,0 +1,225 @@
+package org.shineupdate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.shineupdate.MetricsListener.Phase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts an archive while it is being downloaded.
+ * <p>
+ * The downloading thread hands every chunk to {@link #write(byte[], int, int)}, a second thread inflates the entries
+ * into a staging directory as their bytes arrive. Modes and symbolic links are only known from the central directory
+ * at the end of the archive, {@link #finish(File)} completes the tree from the downloaded file. Anything that can't
+ * be read as a stream (e.g. stored entries with a data-descriptor) makes the extractor give up quietly, the download
+ * continues and the archive is extracted after it.
+ */
+final class StreamingExtractor {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L		  = LoggerFactory.getLogger(StreamingExtractor.class);
+	private static final int PIPE_SIZE    = 1024*256;
+	private static final int BUFFER_SIZE  = 1024*64;
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private final File stagingDir;
+
+	/* downloading thread only */
+	private PipedOutputStream pipe;
+	private CountDownLatch inflated;
+	private long started;
+	private volatile IOException failure;
+	private volatile long extracted;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private StreamingExtractor(final File stagingDir) {
+		this.stagingDir = stagingDir;
+	}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static StreamingExtractor create(final File stagingDir) {
+		return new StreamingExtractor(stagingDir);
+	}
+
+	/** starts a new pass from the first byte of the archive, a running pass is abandoned */
+	public void begin() throws IOException {
+		this.abort();
+
+		FileHelper.deleteRecursively(this.stagingDir);
+		if (! this.stagingDir.mkdirs()) {
+			throw new IOException("could not create '" + this.stagingDir + "'");
+		}
+
+		final PipedInputStream source = new PipedInputStream(PIPE_SIZE);
+		final CountDownLatch latch    = new CountDownLatch(1);
+		this.pipe					  = new PipedOutputStream(source);
+		this.inflated				  = latch;
+		this.failure				  = null;
+		this.extracted				  = 0;
+		this.started				  = System.nanoTime();
+
+		ShineUpdate.instance().executor.execute(
+			new Runnable() {
+					@Override
+					public void run() {
+						try {
+							inflate(source);
+						} catch (final IOException e) {
+							L.debug("extracting while downloading failed: {}", e.getMessage());
+							failure = e;
+						} finally {
+
+							/* unblocks the downloading thread if it is still writing */
+							try {
+								source.close();
+							} catch (final IOException e) {}
+							latch.countDown();
+						}
+					}
+				});
+	}
+
+	/** only fails if interrupted, a broken pass just means that the archive has to be extracted later */
+	public void write(final byte data[], final int offset, final int length) throws InterruptedIOException {
+		if (this.pipe == null) {
+			return;
+		}
+
+		try {
+			this.pipe.write(data, offset, length);
+		} catch (final InterruptedIOException e) {
+			this.abort();
+			throw e;
+		} catch (final IOException e) {
+			L.debug("giving up extracting while downloading: {}", e.getMessage());
+			this.abort();
+		}
+	}
+
+	/**
+	 * To be called once <code>archive</code> is complete.
+	 *
+	 * @return the staged tree or null if it couldn't be extracted while downloading
+	 */
+	public File finish(final File archive) throws InterruptedException {
+		if (this.pipe == null) {
+			return null;
+		}
+
+		try {
+			this.pipe.close();
+		} catch (final IOException e) {}
+		this.pipe = null;
+		this.inflated.await();
+
+		try {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+			ZipExtractor.completeStaged(archive, this.stagingDir);
+			L.debug("archive extracted while downloading to '{}'", this.stagingDir);
+
+			/* the whole pass, it runs alongside the download */
+			ShineUpdate.instance().metrics.completed(
+				Phase.UNZIP,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.started),
+				this.extracted);
+
+			return this.stagingDir;
+
+		} catch (final IOException e) {
+			L.debug("discarding tree extracted while downloading: {}", e.getMessage());
+			this.discard();
+
+			return null;
+		}
+	}
+
+	/** stops the running pass and removes what it extracted */
+	public void abort() {
+		if (this.pipe == null) {
+			return;
+		}
+
+		try {
+			this.pipe.close();
+		} catch (final IOException e) {}
+		this.pipe = null;
+
+		boolean interrupted = Thread.interrupted();
+		try {
+			this.inflated.await();
+		} catch (final InterruptedException e) {
+			interrupted = true;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.discard();
+	}
+
+	private void discard() {
+		try {
+			FileHelper.deleteRecursively(this.stagingDir);
+		} catch (final IOException e) {
+			L.warn("could not delete '{}'", this.stagingDir);
+		}
+	}
+
+	private void inflate(final PipedInputStream source) throws IOException {
+
+		File root				  = this.stagingDir.getCanonicalFile();
+		byte buffer[]			  = new byte[BUFFER_SIZE];
+		ZipInputStream zip		  = new ZipInputStream(source);
+		ResourceGovernor governor = ShineUpdate.instance().governor;
+
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			File target = ZipExtractor.resolve(root, entry.getName());
+			if (entry.isDirectory()) {
+				if (! target.isDirectory() && ! target.mkdirs()) {
+					throw new IOException("could not create directory '" + target + "'");
+				}
+				continue;
+			}
+
+			if (! target.getParentFile().isDirectory() && ! target.getParentFile().mkdirs()) {
+				throw new IOException("could not create directory '" + target.getParentFile() + "'");
+			}
+
+			/* ZipInputStream checks the crc at the end of the entry */
+			OutputStream out = new FileOutputStream(target);
+			try {
+				int count;
+				while ((count = zip.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+					this.extracted = this.extracted + count;
+					governor.acquireDisk(count);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/* the central directory follows, it is read from the downloaded file */
+		while (source.read(buffer) != -1) {}
+	}
+}
@@ -1,5 +1,7 @@
 package org.shineupdate;
 
+import java.io.File;
+
 public final class Test {
 
 	//~ Methods --------------------------------------------------------------------------------------------------------
@@ -10,6 +12,7 @@ public final class Test {
 	
 		
 		ShineUpdate.instantiate("http://localhost/distribute_test/", "Test App", "testXYZ", "1.7.2");
+		ShineUpdate.instance().installTo(new File("test"));
 		
 		ShineUpdate.instance().check(true);
 		System.exit(0);
@@ -0,0 +1,54 @@
+package org.shineupdate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Number of bytes to move per read of a download. It follows the observed throughput, so a fast link needs fewer
+ * calls per megabyte while a slow one doesn't hold on to a large buffer. Sizes are powers of two between
+ * {@link StaticConfig#DOWNLOAD_BUFFER_MIN} and {@link StaticConfig#DOWNLOAD_BUFFER_MAX}.
+ */
+final class TransferSize {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	/* a read should take about this long */
+	private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	//~ Instance fields ------------------------------------------------------------------------------------------------
+
+	private int size		 = StaticConfig.DOWNLOAD_BUFFER_MIN;
+	private long windowStart = System.nanoTime();
+	private long windowBytes = 0;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private TransferSize() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	public static TransferSize create() {
+		return new TransferSize();
+	}
+
+	public int get() {
+		return this.size;
+	}
+
+	/** to be called after every read with the number of bytes it returned */
+	public void update(final int count) {
+		this.windowBytes = this.windowBytes + count;
+
+		long now	 = System.nanoTime();
+		long elapsed = now - this.windowStart;
+		if (elapsed < TARGET_NANOS) {
+			return;
+		}
+
+		long perTarget = (this.windowBytes * TARGET_NANOS) / elapsed;
+		int wanted     = (int) Math.min(perTarget, StaticConfig.DOWNLOAD_BUFFER_MAX);
+		this.size	   = Math.max(Integer.highestOneBit(Math.max(wanted, 1)), StaticConfig.DOWNLOAD_BUFFER_MIN);
+
+		this.windowStart     = now;
+		this.windowBytes     = 0;
+	}
+}
@@ -0,0 +1,165 @@
+package org.shineupdate;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies a tree for the {@link InstallHelper}. The tree is walked once, directories are created on the way and files
+ * are copied by a fixed number of threads. Each file is read once, the copy is forced to disk and must have as many
+ * bytes as the original. Symbolic links are copied as links, permissions and modification times are kept.
+ */
+final class TreeCopier {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final int BUFFER_SIZE = 1024*256;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private TreeCopier() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/** @param from a file or a directory, <code>to</code> must not exist */
+	public static void copy(final File from, final File to, final int threads)
+					 throws IOException {
+
+		final Path source		   = from.toPath();
+		final Path target		   = to.toPath();
+		final List<Path> dirs	   = new ArrayList<Path>();
+		final List<Future<?>> jobs = new ArrayList<Future<?>>();
+		ExecutorService pool	   = Executors.newFixedThreadPool(threads);
+		try {
+			final ExecutorService copiers = pool;
+			Files.walkFileTree(
+				source,
+				EnumSet.noneOf(FileVisitOption.class),
+				Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+													  throws IOException {
+						Files.createDirectories(resolve(source, target, dir));
+						dirs.add(dir);
+
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+											  throws IOException {
+						final Path copy = resolve(source, target, file);
+						if (attrs.isSymbolicLink()) {
+							Files.createSymbolicLink(copy, Files.readSymbolicLink(file));
+						} else if (attrs.isRegularFile()) {
+							jobs.add(
+								copiers.submit(
+									new Callable<Void>() {
+										@Override
+										public Void call() throws IOException {
+											copyFile(file, copy);
+											return null;
+										}
+									}));
+						}
+
+						return FileVisitResult.CONTINUE;
+					}
+
+				});
+
+			for (final Future<?> job : jobs) {
+				job.get();
+			}
+
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while copying '" + from + "'", e);
+
+		} finally {
+			pool.shutdownNow();
+		}
+
+		/* last, so that read-only directories could be filled and their times aren't changed by that */
+		for (final Path dir : dirs) {
+			copyAttributes(dir, resolve(source, target, dir));
+		}
+	}
+
+	private static Path resolve(final Path source, final Path target, final Path path) {
+		return target.resolve(source.relativize(path).toString());
+	}
+
+	private static void copyFile(final Path from, final Path to) throws IOException {
+
+		long size;
+		long written = 0;
+		FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+		try {
+			FileChannel out =
+				FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+			try {
+				size = in.size();
+
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(size, BUFFER_SIZE)));
+				while (in.read(buffer) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						written = written + out.write(buffer);
+					}
+					buffer.clear();
+				}
+
+				/* on disk before the slots are switched */
+				out.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		if ((written != size) || (Files.size(to) != size)) {
+			throw new IOException("copy of '" + from + "' has " + written + " of " + size + " bytes");
+		}
+		copyAttributes(from, to);
+	}
+
+	private static void copyAttributes(final Path from, final Path to) throws IOException {
+		if (Files.getFileAttributeView(from, PosixFileAttributeView.class) != null) {
+			Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		} else {
+			File file = to.toFile();
+			file.setExecutable(from.toFile().canExecute());
+			file.setWritable(from.toFile().canWrite());
+		}
+		Files.setLastModifiedTime(to, Files.getLastModifiedTime(from, LinkOption.NOFOLLOW_LINKS));
+	}
+}
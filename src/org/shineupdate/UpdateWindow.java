@@ -1,8 +1,11 @@
 package org.shineupdate;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.Subscribe;
 
+import java.util.EnumMap;
 import java.util.Locale;
+import java.util.Map;
 
 import org.appkit.concurrent.GUI;
 import org.appkit.registry.Images;
@@ -45,66 +48,81 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 	private static final Point sizeInfo						 = new Point(420, 150);
 	private static final Point sizeChangelog				 = new Point(590, 390);
 	private static final Point sizeProgress					 = new Point(380, 128);
+	private static final Map<State, String> TEMPLATES		 =
+		ImmutableMap.<State, String>builder().put(State.WAIT, "wait").put(State.NO_UPDATES, "noupdates")
+					.put(State.CHANGELOG, "changelog").put(State.DOWNLOADING, "download")
+					.put(State.RESTART, "restart").put(State.ERROR, "error").build();
+	private static Templating sharedTemplating;
+	private static Texts sharedTexts;
 
 	//~ Instance fields ------------------------------------------------------------------------------------------------
 
-	private final Texts texts;
+	private Texts texts;
 	private Shell shell;
 	private Component updateWindow;
 	private Composite compMain;
+	private EventContext context;
 
-	/* parts */
-	private Component waitComp;
-	private Component noUpdatesComp;
-	private Component changelogComp;
-	private Component downloadingComp;
-	private Component restartComp;
-	private Component errorComp;
+	/* parts, created when their state is first shown */
+	private final Map<State, Component> components = new EnumMap<State, Component>(State.class);
 
 	//~ Constructors ---------------------------------------------------------------------------------------------------
 
-	private UpdateWindow() {
-		this.texts = Texts.fromResources(Locale.ENGLISH);
-	}
+	private UpdateWindow() {}
 
 	//~ Methods --------------------------------------------------------------------------------------------------------
 
+	/** the shell, nothing of it exists before a state is shown (silent checks never get here) */
 	private void initialize() {
 		if (this.shell != null) {
 			return;
 		}
 
-		this.shell = new Shell(SWT.TITLE);
+		this.texts   = texts();
+		this.shell   = new Shell(SWT.TITLE);
 		this.shell.setLayout(new FillLayout());
-
-		Templating templating = Templating.fromResources();
-		templating.addType(VersionDescriptionBrowser.class, "changelogtable");
-		EventContext context  = EventContexts.forSendingTo(this);
+		this.context = EventContexts.forSendingTo(this);
 
 		/* init window */
-		this.updateWindow = templating.create("updatewindow", context, this.shell);
+		this.updateWindow = templating().create("updatewindow", this.context, this.shell);
 
 		/* Logo */
 		Images.set(this.updateWindow.select("logo", Label.class), "images/icon64.png");
 
-		/* init other components */
+		/* the parts go here */
 		this.compMain = this.updateWindow.select("main-composite", Composite.class);
 		this.compMain.setLayout(new StackLayout());
+	}
+
+	/** the part showing <code>state</code>, it is created and translated on first use */
+	private Component component(final State state) {
+
+		Component component = this.components.get(state);
+		if (component == null) {
+			component = templating().create(TEMPLATES.get(state), this.context, this.compMain);
+			Texts.translateComponent(component, Locale.ENGLISH);
+			this.components.put(state, component);
+		}
+
+		return component;
+	}
+
+	/* both are shared by all windows, ui-thread only */
+	private static Templating templating() {
+		if (sharedTemplating == null) {
+			sharedTemplating = Templating.fromResources();
+			sharedTemplating.addType(VersionDescriptionBrowser.class, "changelogtable");
+		}
 
-		this.waitComp			 = templating.create("wait", context, compMain);
-		this.noUpdatesComp		 = templating.create("noupdates", context, compMain);
-		this.changelogComp		 = templating.create("changelog", context, compMain);
-		this.downloadingComp     = templating.create("download", context, compMain);
-		this.restartComp		 = templating.create("restart", context, compMain);
-		this.errorComp			 = templating.create("error", context, compMain);
-
-		/* translate components */
-		Texts.translateComponent(this.waitComp, Locale.ENGLISH);
-		Texts.translateComponent(this.noUpdatesComp, Locale.ENGLISH);
-		Texts.translateComponent(this.changelogComp, Locale.ENGLISH);
-		Texts.translateComponent(this.downloadingComp, Locale.ENGLISH);
-		Texts.translateComponent(this.restartComp, Locale.ENGLISH);
-		Texts.translateComponent(this.errorComp, Locale.ENGLISH);
+		return sharedTemplating;
+	}
+
+	private static Texts texts() {
+		if (sharedTexts == null) {
+			sharedTexts = Texts.fromResources(Locale.ENGLISH);
+		}
+
+		return sharedTexts;
 	}
 
 	public static UpdateWindow create() {
@@ -178,6 +196,16 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 		}
 	}
 
+	private static String formatSeconds(final long seconds) {
+		if (seconds < 60) {
+			return seconds + " s";
+		} else if (seconds < 3600) {
+			return String.format("%d:%02d min", seconds / 60, seconds % 60);
+		} else {
+			return String.format("%d:%02d h", seconds / 3600, (seconds % 3600) / 60);
+		}
+	}
+
 	private final void updateShell(final Composite topControl, final Button defButton, final Point newSize) {
 		shell.setVisible(false);
 		shell.setDefaultButton(defButton);
@@ -195,8 +223,9 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			Component part = component(State.WAIT);
 			shell.setText(texts.get("title_updating", ShineUpdate.instance().applicationName));
-			updateShell(waitComp.getComposite(), null, sizeProgress);
+			updateShell(part.getComposite(), null, sizeProgress);
 		}
 
 		@Override
@@ -207,6 +236,7 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			Component part = component(State.NO_UPDATES);
 
 			/* Shell Title */
 			shell.setText("");
@@ -214,11 +244,11 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 			/* Texts */
 			String applicationName = ShineUpdate.instance().applicationName;
 			String currentVersion  = ShineUpdate.instance().currentVersion;
-			noUpdatesComp.select("uptodate_longer", Label.class).setText(
+			part.select("uptodate_longer", Label.class).setText(
 				texts.get("noupdates_uptodate_longer", applicationName, currentVersion));
 
 			/* Update and open Shell */
-			updateShell(noUpdatesComp.getComposite(), noUpdatesComp.select("action_ok", Button.class), sizeInfo);
+			updateShell(part.getComposite(), part.select("action_ok", Button.class), sizeInfo);
 		}
 
 		@Override
@@ -229,6 +259,7 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			Component part = component(State.CHANGELOG);
 
 			/* Shell Title */
 			shell.setText(texts.get("title_updateavailable"));
@@ -238,37 +269,39 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 			String applicationName				 = ShineUpdate.instance().applicationName;
 			String currentVersion				 = ShineUpdate.instance().currentVersion;
 
-			changelogComp.select("title", Label.class).setText(texts.get("changelog_title", applicationName));
+			part.select("title", Label.class).setText(texts.get("changelog_title", applicationName));
 
 			if (latestVersionDesc.isMandatory()) {
-				GridUtils.show(changelogComp.select("question_mandatory", Label.class));
-				GridUtils.hide(changelogComp.select("question", Label.class));
-				changelogComp.select("question_mandatory", Label.class).setText(
+				GridUtils.show(part.select("question_mandatory", Label.class));
+				GridUtils.hide(part.select("question", Label.class));
+				part.select("question_mandatory", Label.class).setText(
 					texts.get(
 						"changelog_question_mandatory",
 						applicationName,
 						latestVersionDesc.getVersion(),
 						currentVersion));
-				changelogComp.select("action_skip", Button.class).setEnabled(false);
-				changelogComp.select("action_remindlater", Button.class).setEnabled(false);
+				part.select("action_skip", Button.class).setEnabled(false);
+				part.select("action_remindlater", Button.class).setEnabled(false);
 
 			} else {
-				GridUtils.hide(changelogComp.select("question_mandatory", Label.class));
-				GridUtils.show(changelogComp.select("question", Label.class));
-				changelogComp.select("question", Label.class).setText(
+				GridUtils.hide(part.select("question_mandatory", Label.class));
+				GridUtils.show(part.select("question", Label.class));
+				part.select("question", Label.class).setText(
 					texts.get("changelog_question", applicationName, latestVersionDesc.getVersion(), currentVersion));
-				changelogComp.select("action_skip", Button.class).setEnabled(true);
-				changelogComp.select("action_remindlater", Button.class).setEnabled(true);
+				part.select("action_skip", Button.class).setEnabled(true);
+				part.select("action_remindlater", Button.class).setEnabled(true);
 
 			}
 
 			/* table */
-			changelogComp.select(VersionDescriptionBrowser.class).setVersionDescription(latestVersionDesc);
+			part.select(VersionDescriptionBrowser.class).setVersionDescription(
+				latestVersionDesc,
+				(ReleaseHistory) data[1]);
 
 			/* Update and open Shell */
 			updateShell(
-				changelogComp.getComposite(),
-				changelogComp.select("action_install", Button.class),
+				part.getComposite(),
+				part.select("action_install", Button.class),
 				sizeChangelog);
 		}
 
@@ -277,69 +310,156 @@ public final class UpdateWindow extends GUI<UpdateWindow.State> {
 	}
 
 	private final class StateDownloading implements GUIState {
+
+		private Component part;
+		private DownloadProgress progress;
+
+		/* redraws at a fixed rate, no matter how often the download advances */
+		private final Runnable sampler =
+			new Runnable() {
+				@Override
+				public void run() {
+					if (shell.isDisposed()
+							|| (((StackLayout) compMain.getLayout()).topControl != part.getComposite())) {
+						progress = null;
+						return;
+					}
+
+					progress.sample();
+					showProgress();
+					shell.getDisplay().timerExec(StaticConfig.PROGRESS_INTERVAL, this);
+				}
+			};
+
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			this.part = component(State.DOWNLOADING);
 
 			/* Shell Title */
 			shell.setText(texts.get("title_updating", ShineUpdate.instance().applicationName));
 
 			/* ProgressBar init */
-			downloadingComp.select(ProgressBar.class).setMinimum(0);
+			this.part.select(ProgressBar.class).setMinimum(0);
 
 			/* Update and open Shell */
-			updateShell(downloadingComp.getComposite(), null, sizeProgress);
+			updateShell(this.part.getComposite(), null, sizeProgress);
+
+			if (data.length > 0) {
+				this.update(data);
+			}
 		}
 
 		@Override
 		public void update(final Object... data) {
 
-			int total    = (Integer) data[0];
-			int progress = (Integer) data[1];
+			boolean sampling = (this.progress != null);
+			this.progress = (DownloadProgress) data[0];
+			if (! sampling) {
+				this.sampler.run();
+			}
+		}
+
+		private void showProgress() {
+
+			long total    = progress.getTotal();
+			long progress = this.progress.getCompleted();
 
 			/* Texts: DownloadProgress */
-			String downloadProgress =
-				texts.get("download_progress", formatBytes(progress, true), formatBytes(total, true));
-			downloadingComp.select("progress", Label.class).setText(downloadProgress);
+			String downloadProgress;
+			if (this.progress.isStalled()) {
+				downloadProgress =
+					texts.get("download_progress_stalled", formatBytes(progress, true), formatBytes(total, true));
+			} else if (this.progress.getSecondsRemaining() >= 0) {
+				downloadProgress =
+					texts.get(
+						"download_progress_rate",
+						formatBytes(progress, true),
+						formatBytes(total, true),
+						formatBytes(this.progress.getBytesPerSecond(), true),
+						formatSeconds(this.progress.getSecondsRemaining()));
+			} else {
+				downloadProgress = texts.get("download_progress", formatBytes(progress, true), formatBytes(total, true));
+			}
+			this.part.select("progress", Label.class).setText(downloadProgress);
 
 			/* ProgressBar */
-			if (downloadingComp.select(ProgressBar.class).getMaximum() != total) {
-				downloadingComp.select(ProgressBar.class).setMaximum(total);
+			if (this.part.select(ProgressBar.class).getMaximum() != (int) total) {
+				this.part.select(ProgressBar.class).setMaximum((int) total);
 			}
-			downloadingComp.select(ProgressBar.class).setSelection(progress);
+			this.part.select(ProgressBar.class).setSelection((int) progress);
 		}
 	}
 
 	private final class StateRestart implements GUIState {
+
+		private Component part;
+		private DownloadProgress extraction;
+
+		/* follows the extraction until it's done */
+		private final Runnable sampler =
+			new Runnable() {
+				@Override
+				public void run() {
+					if (shell.isDisposed()
+							|| (((StackLayout) compMain.getLayout()).topControl != part.getComposite())) {
+						extraction = null;
+						return;
+					}
+
+					long total = extraction.getTotal();
+					int percent = (total > 0) ? (int) ((extraction.getCompleted() * 100) / total) : 0;
+					part.select(ProgressBar.class).setSelection(percent);
+					if (percent < 100) {
+						shell.getDisplay().timerExec(StaticConfig.PROGRESS_INTERVAL, this);
+					} else {
+						extraction = null;
+					}
+				}
+			};
+
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			this.part = component(State.RESTART);
 
 			/* Shell Title */
 			shell.setText(texts.get("title_updating", ShineUpdate.instance().applicationName));
 
-			/* ProgressBar to 100% */
-			restartComp.select(ProgressBar.class).setMaximum(100);
-			restartComp.select(ProgressBar.class).setSelection(100);
+			/* ProgressBar to 100% or following the extraction */
+			this.part.select(ProgressBar.class).setMaximum(100);
+			this.part.select(ProgressBar.class).setSelection(100);
 
 			/* Update and open Shell */
-			updateShell(restartComp.getComposite(), restartComp.select("action_restart", Button.class), sizeProgress);
+			updateShell(this.part.getComposite(), this.part.select("action_restart", Button.class), sizeProgress);
+
+			if (data.length > 0) {
+				this.update(data);
+			}
 		}
 
 		@Override
-		public void update(final Object... data) {}
+		public void update(final Object... data) {
+
+			boolean sampling = (this.extraction != null);
+			this.extraction = (DownloadProgress) data[0];
+			if (! sampling) {
+				this.sampler.run();
+			}
+		}
 	}
 
 	private final class StateError implements GUIState {
 		@Override
 		public void enter(final Object... data) {
 			initialize();
+			Component part = component(State.ERROR);
 
 			/* Shell Title */
 			shell.setText("");
 
 			/* Update and open Shell */
-			updateShell(errorComp.getComposite(), errorComp.select("action_ok", Button.class), sizeInfo);
+			updateShell(part.getComposite(), part.select("action_ok", Button.class), sizeInfo);
 		}
 
 		@Override
@@ -2,10 +2,18 @@ package org.shineupdate;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.Files;
 
 import org.appkit.concurrent.Report;
 import org.appkit.concurrent.ReportQueue;
 import org.eclipse.swt.widgets.Display;
+import org.shineupdate.MetricsListener.Phase;
 import org.shineupdate.UpdateWindow.State;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,9 +30,20 @@ public final class Updater implements Runnable {
 	private final Downloader downloader;
 	private final ReportQueue funnel;
 	private final boolean showNotifications;
+	private final Display display; // null unless created on the ui-thread
+	private final long stagingDeadline;
+	private volatile boolean failed = false;
+	private boolean interactive     = false;
 
 	public Updater(final boolean showNotifications) {
+		this(showNotifications, Long.MAX_VALUE);
+	}
+
+	/** @param stagingDeadline when staging in the background stops downloading, in milliseconds since the epoch */
+	public Updater(final boolean showNotifications, final long stagingDeadline) {
 		this.showNotifications = showNotifications;
+		this.stagingDeadline   = stagingDeadline;
+		this.display		   = Display.getCurrent();
 		this.queue		    = ReportQueue.create();
 		this.updateWindow = UpdateWindow.create();
 		this.downloader     = Downloader.create();
@@ -38,21 +57,48 @@ public final class Updater implements Runnable {
 		return this.queue;
 	}
 
+	/** the check or the download ran into an error */
+	public boolean hasFailed() {
+		return this.failed;
+	}
+
 	@Override
 	public void run() {
+
+		/* a check the user asked for isn't held back by the limits for background updates */
+		if (this.showNotifications) {
+			this.beginInteractive();
+		}
 		try {
 			this.check();
 		} catch (final InterruptedException e) {
 			L.error(e.getMessage(), e);
+			this.failed = true;
 		} catch (final RuntimeException e) {
 			L.error(e.getMessage(), e);
+			this.failed = true;
 		} finally {
+			if (this.interactive) {
+				ShineUpdate.instance().governor.endInteractive();
+			}
 			this.queue.report(Status.FINISHED);
-			Display.getDefault().wake();
+
+			/* a check started on the ui-thread holds its event-loop until now */
+			if ((this.display != null) && ! this.display.isDisposed()) {
+				this.display.wake();
+			}
+		}
+	}
+
+	private void beginInteractive() {
+		if (! this.interactive) {
+			ShineUpdate.instance().governor.beginInteractive();
+			this.interactive = true;
 		}
 	}
 
 	private void showError() throws InterruptedException {
+		this.failed = true;
 		if (this.showNotifications) {
 			updateWindow.showState(State.ERROR);
 			this.funnel.take();
@@ -60,8 +106,180 @@ public final class Updater implements Runnable {
 		}
 	}
 
+	private static long millisSince(final long nanoTime) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+	}
+
+	/** compares the digest computed by the Downloader while the bytes came in, a corrupt download is deleted */
+	private boolean verify(final VersionDescription versionDesc, final File downloadedFile, final String hash,
+						   final File stagingDir) {
+		L.debug("checking hash");
+		L.debug("manifest-hash: {}", versionDesc.getDownloadHash());
+		L.debug("file-hash: {}", hash);
+		if (hash.equalsIgnoreCase(versionDesc.getDownloadHash())) {
+			return true;
+		}
+
+		L.error("hashes do not match!");
+		ShineUpdate.instance().metrics.failed(Phase.HASH, 0);
+		if (! downloadedFile.delete()) {
+			L.warn("could not delete corrupt download '{}'", downloadedFile);
+		}
+		if (stagingDir != null) {
+			try {
+				FileHelper.deleteRecursively(stagingDir);
+			} catch (final IOException e) {
+				L.warn("could not delete '{}'", stagingDir);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Downloads, verifies and extracts the update without showing anything, within the limits of the
+	 * {@link ResourceGovernor}.
+	 *
+	 * @return the staged application or null if that didn't work out, the update is then downloaded on request. A
+	 *         failure, unlike the end of the maintenance window, fails the check
+	 */
+	private File stage(final VersionDescription versionDesc) throws InterruptedException {
+
+		MetricsListener metrics = ShineUpdate.instance().metrics;
+		L.debug("staging version {} in the background", versionDesc.getVersion());
+
+		long downloadStarted = System.nanoTime();
+		downloader.loadUpdate(versionDesc);
+
+		/* the download doesn't outlast the maintenance window, it is resumed by a later check */
+		final CountDownLatch downloaded = new CountDownLatch(1);
+		if (this.stagingDeadline != Long.MAX_VALUE) {
+			ShineUpdate.instance().executor.execute(
+				new Runnable() {
+						@Override
+						public void run() {
+							try {
+								long remaining = stagingDeadline - System.currentTimeMillis();
+								if (! downloaded.await(remaining, TimeUnit.MILLISECONDS)) {
+									L.debug("maintenance window closed, stopping the download");
+									downloader.stopDownload();
+								}
+							} catch (final InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					});
+		}
+
+		Report r;
+		try {
+			r = this.awaitDownload();
+		} finally {
+			downloaded.countDown();
+		}
+
+		if (r.type == Downloader.Status.ERROR) {
+			metrics.failed(Phase.DOWNLOAD, millisSince(downloadStarted));
+			this.failed = true;
+			return null;
+
+		} else if (r.type == Downloader.Status.CANCELLED) {
+			L.debug("staging stopped at the end of the maintenance window");
+			return null;
+		}
+
+		File downloadedFile = (File) r.data.get(0);
+		File stagingDir		= (r.data.size() > 2) ? (File) r.data.get(2) : null;
+		if (! this.verify(versionDesc, downloadedFile, (String) r.data.get(1), stagingDir)) {
+			this.failed = true;
+			return null;
+		}
+
+		DownloadProgress extraction = DownloadProgress.create();
+		long unzipStarted			= System.nanoTime();
+		try {
+			File application = StagedUpdate.stage(versionDesc, downloadedFile, stagingDir, extraction);
+
+			/* a tree extracted while downloading has been measured there */
+			if (extraction.getTotal() > 0) {
+				metrics.completed(Phase.UNZIP, millisSince(unzipStarted), extraction.getTotal());
+			}
+
+			return application;
+
+		} catch (final IOException e) {
+			L.error(e.getMessage(), e);
+		} catch (final RuntimeException e) {
+			L.error(e.getMessage(), e);
+		}
+		metrics.failed(Phase.UNZIP, millisSince(unzipStarted));
+		StagedUpdate.discard();
+		this.failed = true;
+
+		return null;
+	}
+
+	/** @return the report that ends the download: DOWNLOADED_FILE, ERROR or CANCELLED */
+	private Report awaitDownload() throws InterruptedException {
+		while (true) {
+			Report r = funnel.take();
+			if ((r.type == Downloader.Status.DOWNLOADED_FILE) || (r.type == Downloader.Status.ERROR)
+					|| (r.type == Downloader.Status.CANCELLED)) {
+				return r;
+			}
+		}
+	}
+
+	/** hands the extracted application to the install-helper and exits */
+	private void install(final VersionDescription versionDesc, final File extractedApplication,
+						 final File downloadedFile) throws InterruptedException {
+
+		MetricsListener metrics = ShineUpdate.instance().metrics;
+		File application		= ShineUpdate.instance().getInstallLocation();
+		if (application == null) {
+			L.error("don't know where the application is installed, call ShineUpdate.installTo() first");
+			metrics.failed(Phase.INSTALL_PREPARE, 0);
+			showError();
+			return;
+		}
+
+		/* the archive is the base for patching to the next version, once it is running */
+		if (downloadedFile.isFile()) {
+			Downloader.retainForPatching(downloadedFile, versionDesc.getVersion());
+		}
+
+		/* prepare command */
+		long started = System.nanoTime();
+		String cmd   = InstallHelper.prepareCommand(extractedApplication, application);
+		L.debug("prepared InstallHelper command: '{}'", cmd);
+		metrics.completed(Phase.INSTALL_PREPARE, millisSince(started), 0);
+
+		/* run shutdown-hook */
+		L.debug("running ShutdownHook ");
+		started = System.nanoTime();
+		ShineUpdate.instance().shutdownHook.shutdownForUpdate();
+		metrics.completed(Phase.SHUTDOWN_HOOK, millisSince(started), 0);
+
+		/* run install helper */
+		started = System.nanoTime();
+		try {
+			L.debug("running install-helper");
+			Runtime.getRuntime().exec(cmd);
+			metrics.completed(Phase.LAUNCH, millisSince(started), 0);
+
+			/* exit system */
+			L.debug("exiting system");
+			System.exit(0);
+		} catch (final IOException e) {
+			L.error(e.getMessage(), e);
+			metrics.failed(Phase.LAUNCH, millisSince(started));
+			showError();
+		}
+	}
+
 	private void check() throws InterruptedException {
 
+		MetricsListener metrics = ShineUpdate.instance().metrics;
 		Report r = null;
 
 		/* notification: wait */
@@ -92,6 +310,12 @@ public final class Updater implements Runnable {
 			}
 		}
 
+		/* a staged build that has been installed or superseded is removed here */
+		File staged = StagedUpdate.find(versionDesc);
+
+		/* the archive of an update that has been installed since is the base for patches now */
+		Downloader.adoptRetained();
+
 		/* compare Versions and check system compatibility */
 		boolean skipThis = ShineUpdate.instance().prefStore.get("skipversion_" + versionDesc.getVersion(), false);
 		String currentVersion = ShineUpdate.instance().currentVersion;
@@ -112,9 +336,19 @@ public final class Updater implements Runnable {
 
 		} else {
 
-			/* notification: changelog */
+			/* the changelog's images and those of skipped versions load while the update is staged */
+			ImageCache.prefetch(versionDesc);
+			ReleaseHistory history = ReleaseHistory.fetch(versionDesc);
+
+			/* silent checks prepare the update before asking, so installing only takes a restart */
+			if ((staged == null) && ! showNotifications && StaticConfig.STAGE_IN_BACKGROUND) {
+				staged = this.stage(versionDesc);
+			}
+
+			/* notification: changelog, its sections are parsed here rather than on the ui-thread */
+			versionDesc.getSections();
 			L.debug("showing Changelog-Window for new version: {}", versionDesc.getVersion());
-			updateWindow.showState(State.CHANGELOG, versionDesc);
+			updateWindow.showState(State.CHANGELOG, versionDesc, history);
 
 			L.debug("waiting for report from UpdateWindow");
 			r = funnel.take();
@@ -129,15 +363,31 @@ public final class Updater implements Runnable {
 			} else if (r.type == UpdateWindow.Action.SKIP) {
 				L.debug("saving wish to skip version {}", versionDesc.getVersion());
 				ShineUpdate.instance().prefStore.store("skipversion_" + versionDesc.getVersion(), true);
+				StagedUpdate.discard();
 
 			} else if (r.type == UpdateWindow.Action.INSTALL) {
 
+				/* the user is waiting for it now */
+				this.beginInteractive();
+
+				/* notification: restart-screen, there's nothing left to do but install */
+				if (staged != null) {
+					L.debug("installing staged version {}", versionDesc.getVersion());
+					updateWindow.showState(State.RESTART);
+					updateWindow.getReports().take();
+					updateWindow.close();
+
+					this.install(versionDesc, staged, Downloader.completedDownload(versionDesc.getDownloadHash()));
+					return;
+				}
+
 				/* notification: downloading */
 				L.debug("showing Download-Window");
 				updateWindow.showState(State.DOWNLOADING);
 
 				/* start download of update */
-				downloader.loadUpdate(versionDesc.getDownloadURL(), versionDesc.getDownloadSize());
+				long downloadStarted = System.nanoTime();
+				downloader.loadUpdate(versionDesc);
 
 				while (true) {
 					L.debug("waiting for reports from Downloader/DownloadWindow");
@@ -149,65 +399,87 @@ public final class Updater implements Runnable {
 						return;
 
 					} else if (r.type == Downloader.Status.ERROR) {
+						metrics.failed(Phase.DOWNLOAD, millisSince(downloadStarted));
 						showError();
 						return;
 
 					} else if (r.type == Downloader.Status.PROGRESS) {
-						updateWindow.showState(State.DOWNLOADING, r.data.get(0), r.data.get(1));
+						updateWindow.showState(State.DOWNLOADING, r.data.get(0));
 
 					} else if (r.type == Downloader.Status.DOWNLOADED_FILE) {
 
 						File downloadedFile = (File) r.data.get(0);
-
-						/* checksum */
-						String hash = FileHelper.getSHA1Hash(downloadedFile);
-						L.debug("checking hash");
-						L.debug("manifest-hash: {}", versionDesc.getDownloadSHA1Hash());
-						L.debug("file-hash: {}", hash);
-						if (!hash.equals(versionDesc.getDownloadSHA1Hash())) {
-							L.error("hashes do not match!");
+						final File stagingDir = (r.data.size() > 2) ? (File) r.data.get(2) : null;
+						if (! this.verify(versionDesc, downloadedFile, (String) r.data.get(1), stagingDir)) {
 							showError();
 							return;
 						}
 
+						/* unzip, while the restart-screen is shown */
+						final File archive					= downloadedFile;
+						final DownloadProgress extraction   = DownloadProgress.create();
+						final long unzipStarted				= System.nanoTime();
+						FutureTask<File> extractTask		=
+							new FutureTask<File>(
+								new Callable<File>() {
+									@Override
+									public File call() {
+
+										/* extracted while downloading, promoted now that the digest matched */
+										if (stagingDir != null) {
+											File promoted = new File(Files.createTempDir(), stagingDir.getName());
+											if (stagingDir.renameTo(promoted)) {
+												L.debug("using tree extracted while downloading");
+
+												/* nothing left to extract, the restart-screen shows it complete */
+												extraction.start(1, 1);
+												return FileHelper.findApplication(promoted);
+											}
+											L.warn("could not promote '{}', extracting again", stagingDir);
+										}
+
+										File extracted = extract();
+										ShineUpdate.instance().metrics.completed(
+											Phase.UNZIP,
+											millisSince(unzipStarted),
+											extraction.getTotal());
+
+										return extracted;
+									}
+
+									private File extract() {
+
+									//	if (OSUtils.isWindows()) {
+									//		return archive;
+									//	} else if (OSUtils.isMac()) {
+											L.debug("mac -> unzipping file");
+											return FileHelper.unzipMacApplication(archive, extraction);
+									//	}
+									}
+								});
+						ShineUpdate.instance().executor.execute(extractTask);
+
 						/* notification: restart-screen */
 						L.debug("showing install/restart-window");
-						updateWindow.showState(State.RESTART);
+						updateWindow.showState(State.RESTART, extraction);
 						L.debug("waiting for action from install/restart-window");
 						updateWindow.getReports().take();
-						L.debug("closing install/restart-window");
-						updateWindow.close();
 
-						/* unzip */
 						File extractedApplication = null;
-					//	if (OSUtils.isWindows()) {
-					//		extractedApplication = downloadedFile;
-					//	} else if (OSUtils.isMac()) {
-							L.debug("mac -> unzipping file");
-							extractedApplication = FileHelper.unzipMacApplication(downloadedFile);
-					//	}
-
-						/* prepare command */
-						File application = new File("test");
-						String cmd		 = InstallHelper.prepareCommand(extractedApplication, application);
-						L.debug("prepared InstallHelper command: '{}'", cmd);
-
-						/* run shutdown-hook */
-						L.debug("running ShutdownHook ");
-						ShineUpdate.instance().shutdownHook.shutdownForUpdate();
-
-						/* run install helper */
 						try {
-							L.debug("running install-helper");
-							Runtime.getRuntime().exec(cmd);
-
-							/* exit system */
-							L.debug("exiting system");
-							System.exit(0);
-						} catch (final IOException e) {
+							extractedApplication = extractTask.get();
+						} catch (final ExecutionException e) {
 							L.error(e.getMessage(), e);
+							metrics.failed(Phase.UNZIP, millisSince(unzipStarted));
+							updateWindow.close();
 							showError();
+							return;
 						}
+						L.debug("closing install/restart-window");
+						updateWindow.close();
+
+						this.install(versionDesc, extractedApplication, downloadedFile);
+						return;
 					}
 				}
 			}
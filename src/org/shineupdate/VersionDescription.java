@@ -1,11 +1,22 @@
 package org.shineupdate;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.io.InputSupplier;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 
 import java.util.List;
+import java.util.Map;
 
 import org.appkit.osdependant.OSUtils;
 
@@ -22,70 +33,163 @@ public final class VersionDescription {
 
 	private boolean isMandatory	= false;
 	private String version;
-	private String foreWord;
-	private ImmutableList<Section> sections;
 	private String downloadURL;
+	private final List<String> mirrors = Lists.newArrayList();
 	private String downloadSHA1;
+	private String downloadSHA256;
 	private int downloadSize;
+	private final Map<String, Patch> patches = Maps.newHashMap();
+	private final Map<String, String> history = Maps.newLinkedHashMap();
+
+	/* foreword and sections are read from the source once they are needed */
+	private final InputSupplier<? extends Reader> source;
+	private String foreWord;
+	private ImmutableList<Section> sections;
 
 	//~ Constructors ---------------------------------------------------------------------------------------------------
 
-	private VersionDescription() {}
+	private VersionDescription(final InputSupplier<? extends Reader> source) {
+		this.source = source;
+	}
 
 	//~ Methods --------------------------------------------------------------------------------------------------------
 
 	public static VersionDescription parse(final String description) {
+		return parse(CharStreams.newReaderSupplier(description));
+	}
 
-		VersionDescription versionDesc	    = new VersionDescription();
+	/**
+	 * Reads the info-section and stops: a silent check doesn't need more. Foreword and changelog-sections are parsed
+	 * from <code>source</code> when they are first asked for.
+	 */
+	public static VersionDescription parse(final InputSupplier<? extends Reader> source) {
+
+		VersionDescription versionDesc = new VersionDescription(source);
 
 		L.debug("parsing version-description");
+		try {
+			BufferedReader reader = new BufferedReader(source.getInput());
+			try {
+				versionDesc.parseInfo(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		Preconditions.checkNotNull(versionDesc.version, "[version-description] version not found");
 
-		/* replace window-style line-endings by sane ones */
-		//String desc			  = description.replace("\\r\\n", "\n");
-		String desc			  = description.replaceAll("(\r\n)","\n");  //to youngil
+		return versionDesc;
+	}
 
-		/* split into section */
-		List<String> sections = Lists.newArrayList(Splitter.on("\n\n").split(desc));
-		Preconditions.checkState(sections.size() >= 2, "Need at least two sections (info & foreword");
+	/** section 0: info & download, up to the first empty line (BufferedReader takes care of windows line-endings) */
+	private void parseInfo(final BufferedReader reader) throws IOException {
 
 		/* platform */
 		String platform = OSUtils.getPlatform().toString().toLowerCase();
 		L.debug("running on platform '{}'", platform);
 
-		/* section 0: info & download */
-		for (final String infoLine : Splitter.on("\n").split(sections.get(0))) {
-			Preconditions.checkArgument(infoLine.contains(":"), "Info must consist of key-value pairs");
+		String infoLine;
+		while (((infoLine = reader.readLine()) != null) && ! infoLine.isEmpty()) {
+			int colon = infoLine.indexOf(':');
+			Preconditions.checkArgument(colon != -1, "Info must consist of key-value pairs");
 
-			String key   = infoLine.substring(0, infoLine.indexOf(':')).trim().toLowerCase();
-			String value = infoLine.substring(infoLine.indexOf(':') + 1).trim();
+			String name  = infoLine.substring(0, colon).trim();
+			String key   = name.toLowerCase();
+			String value = infoLine.substring(colon + 1).trim();
 
 			if (key.equals("version")) {
-				versionDesc.version = value;
+				this.version = value;
 			} else if (key.equals("mandatory")) {
-				versionDesc.isMandatory = true;
+				this.isMandatory = true;
 			} else if (key.equals(platform)) {
-				versionDesc.downloadURL = value;
+				this.downloadURL = value;
+			} else if (key.equals(platform + "_mirror")) {
+				this.mirrors.add(value);
 			} else if (key.equals(platform + "_sha1")) {
-				versionDesc.downloadSHA1 = value;
+				this.downloadSHA1 = value;
+			} else if (key.equals(platform + "_sha256")) {
+				this.downloadSHA256 = value;
 			} else if (key.equals(platform + "_size")) {
-				versionDesc.downloadSize = Integer.valueOf(value);
+				this.downloadSize = Integer.valueOf(value);
+			} else if (key.startsWith(platform + "_patch_")) {
+				this.parsePatchProperty(key.substring((platform + "_patch_").length()), value);
+			} else if (key.startsWith("changelog_")) {
+
+				/* versions are shown and compared as they are written */
+				this.history.put(name.substring("changelog_".length()), value);
 			} else {
 				L.debug("ignored property '{}' -> '{}'", key, value);
 			}
 		}
-		Preconditions.checkNotNull(versionDesc.version, "[version-description] version not found");
+	}
 
-		/* section 1: foreword */
-		versionDesc.foreWord = sections.get(1);
+	/** section 1: foreword, additional sections: changelog */
+	private synchronized void parseSections() {
+		if (this.sections != null) {
+			return;
+		}
 
-		/* additional sections */
-		ImmutableList.Builder<Section> lb = ImmutableList.builder();
-		for (int i = 2; i < sections.size(); i++) {
-			lb.add(Section.parse(sections.get(i)));
+		L.debug("parsing foreword and sections");
+		try {
+			BufferedReader reader = new BufferedReader(this.source.getInput());
+			try {
+
+				/* skip the info, the source must still describe the same version */
+				VersionDescription info = new VersionDescription(this.source);
+				info.parseInfo(reader);
+				Preconditions.checkState(
+					this.version.equals(info.version),
+					"[version-description] changed from %s to %s",
+					this.version,
+					info.version);
+
+				StringBuilder foreWord = new StringBuilder();
+				String line;
+				while (((line = reader.readLine()) != null) && ! line.isEmpty()) {
+					if (foreWord.length() > 0) {
+						foreWord.append('\n');
+					}
+					foreWord.append(line);
+				}
+				Preconditions.checkState(line != null, "Need at least two sections (info & foreword");
+				this.foreWord = foreWord.toString();
+
+				ImmutableList.Builder<Section> lb = ImmutableList.builder();
+				while ((line = reader.readLine()) != null) {
+					lb.add(Section.parse(line, reader));
+				}
+				this.sections = lb.build();
+
+			} finally {
+				reader.close();
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
 		}
-		versionDesc.sections = lb.build();
+	}
 
-		return versionDesc;
+	/** patch properties are '&lt;platform&gt;_patch_&lt;from-version&gt;[_sha1|_size]' */
+	private void parsePatchProperty(final String key, final String value) {
+
+		String fromVersion = key;
+		if (key.endsWith("_sha1") || key.endsWith("_size")) {
+			fromVersion = key.substring(0, key.length() - "_sha1".length());
+		}
+
+		Patch patch = this.patches.get(fromVersion);
+		if (patch == null) {
+			patch = new Patch();
+			this.patches.put(fromVersion, patch);
+		}
+
+		if (key.endsWith("_sha1")) {
+			patch.sha1 = value;
+		} else if (key.endsWith("_size")) {
+			patch.size = Integer.valueOf(value);
+		} else {
+			patch.url = value;
+		}
 	}
 
 	public String getVersion() {
@@ -104,24 +208,89 @@ public final class VersionDescription {
 		return this.downloadURL;
 	}
 
+	/** the download-url followed by the mirrors, from '&lt;platform&gt;_mirror' properties that may be repeated */
+	public ImmutableList<String> getDownloadURLs() {
+		return ImmutableList.<String>builder().add(this.downloadURL).addAll(this.mirrors).build();
+	}
+
 	public String getDownloadSHA1Hash() {
 		return this.downloadSHA1;
 	}
 
+	public String getDownloadSHA256Hash() {
+		return this.downloadSHA256;
+	}
+
+	/** the strongest hash the description declares for the download */
+	public String getDownloadHash() {
+		return (this.downloadSHA256 != null) ? this.downloadSHA256 : this.downloadSHA1;
+	}
+
+	/** the function that computes {@link #getDownloadHash()} */
+	public HashFunction getDownloadHashFunction() {
+		return (this.downloadSHA256 != null) ? Hashing.sha256() : Hashing.sha1();
+	}
+
 	public int getDownloadSize() {
 		return this.downloadSize;
 	}
 
+	/**
+	 * The release index: urls of the descriptions of earlier versions, from 'changelog_&lt;version&gt;' properties
+	 * listed newest first.
+	 */
+	public ImmutableMap<String, String> getHistory() {
+		return ImmutableMap.copyOf(this.history);
+	}
+
+	/**
+	 * A binary patch that turns the download of <code>fromVersion</code> into this version's download.
+	 *
+	 * @return null if there is none
+	 */
+	public Patch getPatch(final String fromVersion) {
+
+		Patch patch = this.patches.get(fromVersion.toLowerCase());
+		if ((patch == null) || (patch.url == null)) {
+			return null;
+		}
+
+		return patch;
+	}
+
 	public String getForeWord() {
+		this.parseSections();
 		return this.foreWord;
 	}
 
 	public ImmutableList<Section> getSections() {
+		this.parseSections();
 		return this.sections;
 	}
 
 	//~ Inner Classes --------------------------------------------------------------------------------------------------
 
+	public static class Patch {
+
+		private String url;
+		private String sha1;
+		private int size;
+
+		private Patch() {}
+
+		public String getURL() {
+			return url;
+		}
+
+		public String getSHA1Hash() {
+			return sha1;
+		}
+
+		public int getSize() {
+			return size;
+		}
+	}
+
 	public static class Section {
 
 		private String name;
@@ -131,28 +300,55 @@ public final class VersionDescription {
 		private Section() {}
 
 		public static Section parse(final String sectionString) {
+			try {
+				BufferedReader reader = new BufferedReader(new StringReader(sectionString));
+				return parse(reader.readLine(), reader);
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/** reads the section up to the next empty line */
+		private static Section parse(final String line1, final BufferedReader reader) throws IOException {
 
 			Section section = new Section();
 
-			String line1 = sectionString.substring(0, sectionString.indexOf("\n"));
-			Preconditions.checkArgument(line1.contains(":"), "section's first line must be '<title>:<optional-picture-url>'");
+			int colon = line1.indexOf(':');
+			Preconditions.checkArgument(colon != -1, "section's first line must be '<title>:<optional-picture-url>'");
 
 			/* name */
-			section.name = line1.substring(0, line1.indexOf(":"));
-			section.imageURL = line1.substring(line1.indexOf(":")+1).trim();
+			section.name = line1.substring(0, colon);
+			section.imageURL = line1.substring(colon + 1).trim();
 			if (section.imageURL.isEmpty()) {
 				section.imageURL = null;
 			}
 
-			/* sections */
-			String str						 = sectionString.substring(sectionString.indexOf("\n"));
+			/* bullet items, lines without '- ' continue the previous one */
 			ImmutableList.Builder<String> lb = ImmutableList.builder();
-			lb.addAll(Splitter.on("\n- ").trimResults().omitEmptyStrings().split(str));
+			StringBuilder item				 = new StringBuilder();
+			String line;
+			while (((line = reader.readLine()) != null) && ! line.isEmpty()) {
+				if (line.startsWith("- ")) {
+					addItem(lb, item);
+					item.append(line, 2, line.length());
+				} else {
+					item.append('\n').append(line);
+				}
+			}
+			addItem(lb, item);
 			section.bulletItems = lb.build();
 
 			return section;
 		}
 
+		private static void addItem(final ImmutableList.Builder<String> lb, final StringBuilder item) {
+			String trimmed = item.toString().trim();
+			if (! trimmed.isEmpty()) {
+				lb.add(trimmed);
+			}
+			item.setLength(0);
+		}
+
 		public String getName() {
 			return name;
 		}
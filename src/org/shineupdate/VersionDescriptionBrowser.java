@@ -1,20 +1,30 @@
 package org.shineupdate;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import java.net.URI;
+
 import org.appkit.templating.Options;
 import org.appkit.templating.event.EventContext;
 import org.appkit.util.ResourceStringSupplier;
 import org.appkit.widget.util.BrowserWidget;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
 import org.shineupdate.VersionDescription.Section;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public final class VersionDescriptionBrowser extends BrowserWidget {
 
+	private static final Logger L = LoggerFactory.getLogger(VersionDescriptionBrowser.class);
+
 	private VersionDescription description;
+	private ReleaseHistory history;
 
 	public VersionDescriptionBrowser(final EventContext context, final Composite parent, final String name, final Options options) {
 		super(parent, SWT.BORDER);
@@ -22,9 +32,59 @@ public final class VersionDescriptionBrowser extends BrowserWidget {
 
 	public void setVersionDescription(final VersionDescription description) {
 		this.description = description;
+		this.history	 = null;
 		this.reloadWidget();
 	}
 
+	/**
+	 * A cumulative changelog: the intermediate versions get a placeholder each, which is filled in as their
+	 * description arrives without reloading the page.
+	 */
+	void setVersionDescription(final VersionDescription description, final ReleaseHistory history) {
+		this.description = description;
+		this.history	 = history;
+		this.reloadWidget();
+
+		final Display display = this.getDisplay();
+		for (int i = 0; i < history.getVersions().size(); i++) {
+			final int index = i;
+			history.whenDone(
+				index,
+				new Runnable() {
+					@Override
+					public void run() {
+						if (display.isDisposed()) {
+							return;
+						}
+						display.asyncExec(
+							new Runnable() {
+								@Override
+								public void run() {
+									showVersion(history, index);
+								}
+							});
+					}
+				},
+				MoreExecutors.sameThreadExecutor());
+		}
+	}
+
+	private void showVersion(final ReleaseHistory history, final int index) {
+		if (this.isDisposed() || (history != this.history)) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		appendVersion(sb, history.getVersions().get(index), history.get(index));
+		this.executeCmd("document.getElementById('version" + index + "').innerHTML = " + jsString(sb.toString()) + ";");
+	}
+
+	private static String jsString(final String string) {
+		return "'"
+			   + string.replace("\\", "\\\\").replace("'", "\\'").replace("\n", "\\n").replace("\r", "")
+						 .replace("</", "<\\/") + "'";
+	}
+
 	@Override
 	public ImmutableList<String> getStyleSheets() {
 		return ImmutableList.of(ResourceStringSupplier.instance().get("changelogbrowser.css"));
@@ -37,8 +97,35 @@ public final class VersionDescriptionBrowser extends BrowserWidget {
 
 	@Override
 	public String getBody() {
+		if ((this.history == null) || this.history.getVersions().isEmpty()) {
+			return toHTML(this.description);
+		}
+
+		/* versions that haven't arrived yet are added by showVersion() */
+		StringBuilder sb = new StringBuilder();
+		appendVersion(sb, this.description.getVersion(), this.description);
+		for (int i = 0; i < this.history.getVersions().size(); i++) {
+			sb.append("<div id=\"version").append(i).append("\">");
+			appendVersion(sb, this.history.getVersions().get(i), this.history.get(i));
+			sb.append("</div>");
+		}
+
+		return sb.toString();
+	}
+
+	private static void appendVersion(final StringBuilder sb, final String version, final VersionDescription description) {
+		if (description != null) {
+			sb.append("<h4 class=\"version\">");
+			sb.append(version);
+			sb.append("</h4>");
+			sb.append(toHTML(description));
+		}
+	}
+
+	/** the changelog-sections as html, without needing a widget */
+	public static String toHTML(final VersionDescription description) {
 		StringBuilder sb = new StringBuilder();
-		for (Section section : this.description.getSections()) {
+		for (Section section : description.getSections()) {
 			sb.append("<table>");
 			sb.append("<tr><th colspan=2 class=\"header\">");
 			sb.append(section.getName());
@@ -47,8 +134,10 @@ public final class VersionDescriptionBrowser extends BrowserWidget {
 			if (section.getImageURL() != null) {
 				sb.append("<tr><td class=\"image\">");
 
+				/* cached images are shown from disk, the browser fetches the others itself */
+				URI cached = ImageCache.cached(section.getImageURL());
 				sb.append("<img src=\"");
-				sb.append(section.getImageURL());
+				sb.append((cached != null) ? cached.toString() : section.getImageURL());
 				sb.append("\"/>");
 
 				sb.append("</td><td class=\"contents\">");
@@ -75,10 +164,15 @@ public final class VersionDescriptionBrowser extends BrowserWidget {
 		return sb.toString();
 	}
 
+	/** a changelog image from the {@link ImageCache}, null if it can't be loaded */
 	@Override
 	public InputStream getImage(final String image) {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			return ImageCache.open(image);
+		} catch (final IOException e) {
+			L.warn("could not load image '{}': {}", image, e.getMessage());
+			return null;
+		}
 	}
 
 	@Override
@@ -0,0 +1,460 @@
+package org.shineupdate;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.appkit.concurrent.LoggingThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts zip-archives on all cores.
+ * <p>
+ * The central directory is read once, then a worker per core inflates entries with positional reads on one shared
+ * channel, so no entry opens a stream of its own. Unix permissions and symbolic links stored in the archive are
+ * restored (an application bundle doesn't start without them) and entries that would end up outside of the target
+ * directory are rejected. Zip64 archives are not supported.
+ */
+public final class ZipExtractor {
+
+	//~ Static fields/initializers -------------------------------------------------------------------------------------
+
+	private static final Logger L				  = LoggerFactory.getLogger(ZipExtractor.class);
+	private static final int END_SIGNATURE		  = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE    = 0x02014b50;
+	private static final int LOCAL_SIGNATURE	  = 0x04034b50;
+	private static final int END_SIZE			  = 22;
+	private static final int CENTRAL_SIZE		  = 46;
+	private static final int LOCAL_SIZE			  = 30;
+	private static final int MAX_COMMENT		  = 0xFFFF;
+	private static final int MADE_BY_UNIX		  = 3;
+	private static final int METHOD_STORED		  = 0;
+	private static final int METHOD_DEFLATED	  = 8;
+	private static final int TYPE_MASK			  = 0170000;
+	private static final int TYPE_SYMLINK		  = 0120000;
+	private static final int BUFFER_SIZE		  = 1024*64;
+
+	//~ Constructors ---------------------------------------------------------------------------------------------------
+
+	private ZipExtractor() {}
+
+	//~ Methods --------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Extracts <code>zipFile</code> into the existing directory <code>targetDir</code>.
+	 *
+	 * @param progress advances by the uncompressed size of every extracted chunk
+	 */
+	public static void extract(final File zipFile, final File targetDir, final DownloadProgress progress)
+						throws IOException {
+		L.debug("extracting '{}' to '{}'", zipFile, targetDir);
+
+		RandomAccessFile file  = new RandomAccessFile(zipFile, "r");
+		ExecutorService ownPool = null;
+		try {
+			final FileChannel channel = file.getChannel();
+			final List<Entry> entries = readCentralDirectory(channel);
+			final File root			  = targetDir.getCanonicalFile();
+
+			/* directories first, so workers only create files */
+			long total				= 0;
+			final List<Entry> files = new ArrayList<Entry>(entries.size());
+			for (final Entry entry : entries) {
+				entry.target = resolve(root, entry.name);
+				if (entry.isDirectory()) {
+					if (! entry.target.isDirectory() && ! entry.target.mkdirs()) {
+						throw new IOException("could not create directory '" + entry.target + "'");
+					}
+				} else {
+					files.add(entry);
+					total = total + entry.size;
+				}
+			}
+
+			/* big entries first, they'd otherwise finish last on a single worker */
+			Collections.sort(
+				files,
+				new Comparator<Entry>() {
+					@Override
+					public int compare(final Entry first, final Entry second) {
+						return Long.compare(second.size, first.size);
+					}
+				});
+
+			progress.start(total, 0);
+
+			int cores   = ResourceGovernor.current().threads(Runtime.getRuntime().availableProcessors());
+			int workers = Math.max(1, Math.min(cores, files.size()));
+
+			/* without an instance, e.g. for unzipMacApplication() from a tool, the workers get a pool of their own */
+			ShineUpdate instance = ShineUpdate.instanceOrNull();
+			if (instance == null) {
+				ownPool = Executors.newFixedThreadPool(workers, LoggingThreadFactory.create());
+			}
+			Executor executor = (instance != null) ? instance.executor : ownPool;
+			final AtomicInteger next		 = new AtomicInteger();
+			final CountDownLatch latch		 = new CountDownLatch(workers);
+			final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+			for (int i = 0; i < workers; i++) {
+				executor.execute(
+					new Runnable() {
+							@Override
+							public void run() {
+								try {
+									Inflater inflater = new Inflater(true);
+									byte input[]	  = new byte[BUFFER_SIZE];
+									byte output[]     = new byte[BUFFER_SIZE];
+									try {
+										int index;
+										while (failures.isEmpty() && ((index = next.getAndIncrement()) < files.size())) {
+											extractEntry(channel, files.get(index), root, inflater, input, output, progress);
+										}
+									} finally {
+										inflater.end();
+									}
+								} catch (final IOException e) {
+									failures.add(e);
+								} catch (final RuntimeException e) {
+									failures.add(new IOException(e));
+								} finally {
+									latch.countDown();
+								}
+							}
+						});
+			}
+
+			try {
+				latch.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while extracting", e);
+			}
+
+			if (! failures.isEmpty()) {
+				throw failures.get(0);
+			}
+
+			/* only now the directories are done being written to */
+			for (final Entry entry : entries) {
+				if (entry.isDirectory()) {
+					applyMode(entry);
+				}
+			}
+
+			L.debug("extracted {} files, {} bytes", files.size(), total);
+
+		} finally {
+			file.close();
+			if (ownPool != null) {
+				ownPool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Completes a tree that was inflated from the stream of <code>zipFile</code> (see {@link StreamingExtractor}):
+	 * modes and symbolic links are only known from the central directory. Every file has to be there with its
+	 * size.
+	 */
+	static void completeStaged(final File zipFile, final File stagingDir)
+						throws IOException {
+
+		List<Entry> entries;
+		RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+		try {
+			entries = readCentralDirectory(file.getChannel());
+		} finally {
+			file.close();
+		}
+
+		File root = stagingDir.getCanonicalFile();
+		for (final Entry entry : entries) {
+			entry.target = resolve(root, entry.name);
+			if (entry.isDirectory()) {
+				if (! entry.target.isDirectory()) {
+					throw new IOException("directory '" + entry.name + "' is missing");
+				}
+			} else if (! entry.target.isFile() || (entry.target.length() != entry.size)) {
+				throw new IOException("file '" + entry.name + "' is missing or incomplete");
+			}
+		}
+
+		for (final Entry entry : entries) {
+			if (entry.isSymlink()) {
+				byte link[] = Files.readAllBytes(entry.target.toPath());
+				createSymlink(root, entry, link);
+			} else {
+				applyMode(entry);
+			}
+		}
+	}
+
+	private static List<Entry> readCentralDirectory(final FileChannel channel)
+											 throws IOException {
+
+		/* the end record is followed by a comment of up to 64k */
+		long length = channel.size();
+		int tailSize = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+		ByteBuffer tail = readFully(channel, length - tailSize, tailSize);
+
+		int end = -1;
+		for (int i = tailSize - END_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new IOException("not a zip-archive");
+		}
+
+		int count		   = tail.getShort(end + 10) & 0xFFFF;
+		long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long directoryPos  = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		if ((count == 0xFFFF) || (directoryPos == 0xFFFFFFFFL) || ((directoryPos + directorySize) > length)) {
+			throw new IOException("unsupported zip-archive (zip64 or corrupt)");
+		}
+
+		ByteBuffer directory = readFully(channel, directoryPos, (int) directorySize);
+		List<Entry> entries  = Lists.newArrayListWithCapacity(count);
+		int pos				 = 0;
+		for (int i = 0; i < count; i++) {
+			if ((directory.limit() < (pos + CENTRAL_SIZE)) || (directory.getInt(pos) != CENTRAL_SIGNATURE)) {
+				throw new IOException("corrupt central directory at entry " + i);
+			}
+
+			Entry entry			  = new Entry();
+			int madeBy			  = (directory.getShort(pos + 4) & 0xFFFF) >>> 8;
+			entry.method		  = directory.getShort(pos + 10) & 0xFFFF;
+			entry.crc			  = directory.getInt(pos + 16) & 0xFFFFFFFFL;
+			entry.compressedSize  = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+			entry.size			  = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength		  = directory.getShort(pos + 28) & 0xFFFF;
+			int extraLength		  = directory.getShort(pos + 30) & 0xFFFF;
+			int commentLength     = directory.getShort(pos + 32) & 0xFFFF;
+			int attributes		  = directory.getInt(pos + 38);
+			entry.localPos		  = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+			entry.mode			  = (madeBy == MADE_BY_UNIX) ? (attributes >>> 16) : 0;
+
+			byte name[] = new byte[nameLength];
+			directory.position(pos + CENTRAL_SIZE);
+			directory.get(name);
+			entry.name = new String(name, Charsets.UTF_8);
+
+			entries.add(entry);
+			pos = pos + CENTRAL_SIZE + nameLength + extraLength + commentLength;
+		}
+
+		return entries;
+	}
+
+	/** guards against "zip-slip": names like <code>../../x</code> */
+	static File resolve(final File root, final String name)
+						 throws IOException {
+		return checkInside(root, new File(root, name), name);
+	}
+
+	private static File checkInside(final File root, final File file, final String name)
+							 throws IOException {
+
+		File canonical = file.getCanonicalFile();
+		if (! canonical.getPath().startsWith(root.getPath() + File.separator) && ! canonical.equals(root)) {
+			throw new IOException("entry '" + name + "' points outside of the target directory");
+		}
+
+		return canonical;
+	}
+
+	private static void extractEntry(final FileChannel channel, final Entry entry, final File root,
+									 final Inflater inflater, final byte input[], final byte output[],
+									 final DownloadProgress progress)
+							  throws IOException {
+
+		ByteBuffer header = readFully(channel, entry.localPos, LOCAL_SIZE);
+		if (header.getInt(0) != LOCAL_SIGNATURE) {
+			throw new IOException("corrupt local header for '" + entry.name + "'");
+		}
+
+		long dataPos = entry.localPos + LOCAL_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+		if (! entry.target.getParentFile().isDirectory() && ! entry.target.getParentFile().mkdirs()) {
+			throw new IOException("could not create directory '" + entry.target.getParentFile() + "'");
+		}
+
+		ResourceGovernor governor = ResourceGovernor.current();
+		CRC32 crc				  = new CRC32();
+		OutputStream out;
+		if (entry.isSymlink()) {
+			out = new ByteArrayOutputStream((int) entry.size);
+		} else {
+			out = new FileOutputStream(entry.target);
+		}
+
+		try {
+			if (entry.method == METHOD_STORED) {
+				long remaining = entry.compressedSize;
+				long pos	   = dataPos;
+				while (remaining > 0) {
+					int count = read(channel, pos, input, (int) Math.min(remaining, input.length));
+					crc.update(input, 0, count);
+					out.write(input, 0, count);
+					governor.acquireDisk(count);
+					pos		  = pos + count;
+					remaining = remaining - count;
+					progress.add(count);
+				}
+
+			} else if (entry.method == METHOD_DEFLATED) {
+				inflater.reset();
+
+				long remaining = entry.compressedSize;
+				long pos	   = dataPos;
+				boolean padded = false;
+				while (! inflater.finished()) {
+					if (inflater.needsInput()) {
+						if (remaining > 0) {
+							int count = read(channel, pos, input, (int) Math.min(remaining, input.length));
+							inflater.setInput(input, 0, count);
+							pos		  = pos + count;
+							remaining = remaining - count;
+						} else if (! padded) {
+
+							/* raw inflate may ask for one byte past the end of the data */
+							inflater.setInput(input, 0, 1);
+							padded = true;
+						} else {
+							throw new EOFException("unexpected end of '" + entry.name + "'");
+						}
+					}
+
+					int count = inflater.inflate(output);
+					if ((count == 0) && inflater.needsDictionary()) {
+						throw new IOException("unsupported compression of '" + entry.name + "'");
+					}
+					crc.update(output, 0, count);
+					out.write(output, 0, count);
+					governor.acquireDisk(count);
+					progress.add(count);
+				}
+
+			} else {
+				throw new IOException("unsupported compression method " + entry.method + " of '" + entry.name + "'");
+			}
+
+		} catch (final DataFormatException e) {
+			throw new IOException("corrupt data in '" + entry.name + "'", e);
+		} finally {
+			out.close();
+		}
+
+		if (crc.getValue() != entry.crc) {
+			throw new IOException("checksum mismatch in '" + entry.name + "'");
+		}
+
+		if (entry.isSymlink()) {
+			createSymlink(root, entry, ((ByteArrayOutputStream) out).toByteArray());
+		} else {
+			applyMode(entry);
+		}
+	}
+
+	private static void createSymlink(final File root, final Entry entry, final byte link[])
+							   throws IOException {
+
+		Path linkTarget = Paths.get(new String(link, Charsets.UTF_8));
+
+		/* a link must not lead out of the tree either */
+		if (linkTarget.isAbsolute()) {
+			throw new IOException("entry '" + entry.name + "' links to an absolute path");
+		}
+		checkInside(root, new File(entry.target.getParentFile(), linkTarget.toString()), entry.name);
+
+		if (entry.target.exists() && ! entry.target.delete()) {
+			throw new IOException("could not replace '" + entry.target + "'");
+		}
+		Files.createSymbolicLink(entry.target.toPath(), linkTarget);
+	}
+
+	/** only the executable bits are of interest, everything else keeps the defaults of the user */
+	private static void applyMode(final Entry entry) {
+		if ((entry.mode & 0111) != 0) {
+			entry.target.setExecutable(true, (entry.mode & 0011) == 0);
+		}
+	}
+
+	private static ByteBuffer readFully(final FileChannel channel, final long pos, final int length)
+								 throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pos + buffer.position()) == -1) {
+				throw new EOFException("zip-archive ends at " + (pos + buffer.position()));
+			}
+		}
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/** positional, so the workers can share the channel */
+	private static int read(final FileChannel channel, final long pos, final byte buffer[], final int length)
+					 throws IOException {
+
+		int count = channel.read(ByteBuffer.wrap(buffer, 0, length), pos);
+		if (count == -1) {
+			throw new EOFException("zip-archive ends at " + pos);
+		}
+
+		return count;
+	}
+
+	//~ Inner Classes --------------------------------------------------------------------------------------------------
+
+	private static final class Entry {
+
+		private String name;
+		private int method;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long localPos;
+		private int mode;
+		private File target;
+
+		private boolean isDirectory() {
+			return this.name.endsWith("/");
+		}
+
+		private boolean isSymlink() {
+			return (this.mode & TYPE_MASK) == TYPE_SYMLINK;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package test.org.shineupdate;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.shineupdate.CheckScheduler;
+import org.shineupdate.StaticConfig;
+
+public class CheckSchedulerTest {
+
+	private static final long PERIOD = 1000 * 60 * 60;
+
+	/* changed by the tests */
+	private double jitter;
+	private long retryDelay;
+
+	@Before
+	public void saveConfig() {
+		jitter	   = StaticConfig.CHECK_JITTER;
+		retryDelay = StaticConfig.CHECK_RETRY_DELAY;
+	}
+
+	@After
+	public void restoreConfig() {
+		StaticConfig.CHECK_JITTER	   = jitter;
+		StaticConfig.CHECK_RETRY_DELAY = retryDelay;
+	}
+
+	@Test
+	public void jitterStaysWithinItsShareOfThePeriod() {
+		StaticConfig.CHECK_JITTER = 0.1;
+
+		Random random  = new Random(42);
+		boolean spread = false;
+		for (int i = 0; i < 1000; i++) {
+			long delay = CheckScheduler.jitter(PERIOD, PERIOD, random);
+			assertTrue(delay >= PERIOD);
+			assertTrue(delay < (PERIOD + (PERIOD / 10)));
+			spread = spread || (delay > (PERIOD + (PERIOD / 20)));
+		}
+		assertTrue(spread);
+	}
+
+	@Test
+	public void noJitterWithoutShare() {
+		StaticConfig.CHECK_JITTER = 0;
+
+		assertEquals(5000, CheckScheduler.jitter(5000, PERIOD, new Random()));
+	}
+
+	@Test
+	public void backoffDoublesUpToThePeriod() {
+		StaticConfig.CHECK_RETRY_DELAY = 1000 * 60;
+
+		assertEquals(1000 * 60, CheckScheduler.backoff(1, PERIOD));
+		assertEquals(1000 * 60 * 2, CheckScheduler.backoff(2, PERIOD));
+		assertEquals(1000 * 60 * 32, CheckScheduler.backoff(6, PERIOD));
+		assertEquals(PERIOD, CheckScheduler.backoff(7, PERIOD));
+		assertEquals(PERIOD, CheckScheduler.backoff(1000, PERIOD));
+	}
+}
@@ -0,0 +1,101 @@
+package test.org.shineupdate;
+
+import static org.junit.Assert.*;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.shineupdate.DeltaPatch;
+import org.shineupdate.FileHelper;
+
+public class DeltaPatchTest {
+
+	private static final int SIZE = 1024 * 512;
+
+	private File dir;
+	private File oldFile;
+	private File newFile;
+	private File patchFile;
+	private File patchedFile;
+
+	@Before
+	public void createFiles() {
+		dir		    = Files.createTempDir();
+		oldFile	    = new File(dir, "old");
+		newFile	    = new File(dir, "new");
+		patchFile   = new File(dir, "patch");
+		patchedFile = new File(dir, "patched");
+	}
+
+	@After
+	public void deleteFiles() throws IOException {
+		FileHelper.deleteRecursively(dir);
+	}
+
+	@Test
+	public void roundTripWithChangedBlockAndTail() throws IOException {
+		byte old[] = random(SIZE, 1);
+
+		/* a block in the middle differs, another version of the tail is appended */
+		byte changed[] = Arrays.copyOf(old, SIZE + 5000);
+		System.arraycopy(random(3000, 2), 0, changed, SIZE / 2, 3000);
+		System.arraycopy(random(5000, 3), 0, changed, SIZE, 5000);
+
+		Files.write(old, oldFile);
+		Files.write(changed, newFile);
+		DeltaPatch.create(oldFile, newFile, patchFile);
+
+		HashCode hash = DeltaPatch.apply(oldFile, patchFile, patchedFile, Hashing.sha1());
+
+		assertArrayEquals(changed, Files.toByteArray(patchedFile));
+		assertEquals(Files.hash(newFile, Hashing.sha1()), hash);
+
+		/* mostly copied from the old file */
+		assertTrue(patchFile.length() < (SIZE / 10));
+	}
+
+	@Test
+	public void patchOfAnotherBaseDoesNotMatch() throws IOException {
+		byte old[]	   = random(SIZE, 1);
+		byte changed[] = old.clone();
+		changed[1000]++;
+
+		Files.write(old, oldFile);
+		Files.write(changed, newFile);
+		DeltaPatch.create(oldFile, newFile, patchFile);
+
+		/* the installed archive isn't the one the patch was made for */
+		byte other[] = old.clone();
+		other[SIZE - 1]++;
+		Files.write(other, oldFile);
+
+		HashCode hash = DeltaPatch.apply(oldFile, patchFile, patchedFile, Hashing.sha1());
+		assertFalse(Files.hash(newFile, Hashing.sha1()).equals(hash));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsWhatIsNoPatch() throws IOException {
+		Files.write(random(100, 1), patchFile);
+		Files.write(random(100, 2), oldFile);
+
+		DeltaPatch.apply(oldFile, patchFile, patchedFile, Hashing.sha1());
+	}
+
+	private static byte[] random(final int size, final long seed) {
+		byte bytes[] = new byte[size];
+		new Random(seed).nextBytes(bytes);
+
+		return bytes;
+	}
+}
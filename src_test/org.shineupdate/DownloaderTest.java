@@ -0,0 +1,170 @@
+package test.org.shineupdate;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.util.Map;
+
+import org.appkit.concurrent.Report;
+import org.appkit.osdependant.OSUtils;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.shineupdate.Downloader;
+import org.shineupdate.ShineUpdate;
+import org.shineupdate.StaticConfig;
+import org.shineupdate.VersionDescription;
+
+public class DownloaderTest {
+
+	private static final int SIZE = 1024 * 1024 * 64;
+	private static HttpServer server;
+
+	/* changed by the tests */
+	private int connections;
+	private int segmentMinSize;
+	private boolean extractWhileDownloading;
+
+	@BeforeClass
+	public static void startServer() throws IOException {
+
+		/* trickles bytes and never finishes within the test */
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext(
+			"/payload",
+			new HttpHandler() {
+				@Override
+				public void handle(final HttpExchange exchange) throws IOException {
+					String range = exchange.getRequestHeaders().getFirst("Range");
+					if (range != null) {
+						String bounds[] = range.substring("bytes=".length()).split("-");
+						long from	    = Long.valueOf(bounds[0]);
+						long to		    = (bounds.length > 1) ? Long.valueOf(bounds[1]) : (SIZE - 1);
+						exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + SIZE);
+						exchange.sendResponseHeaders(206, (to - from) + 1);
+					} else {
+						exchange.sendResponseHeaders(200, SIZE);
+					}
+
+					OutputStream out = exchange.getResponseBody();
+					try {
+						byte chunk[] = new byte[1024];
+						while (true) {
+							out.write(chunk);
+							out.flush();
+							Thread.sleep(10);
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (final IOException e) {
+
+						/* client went away */
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+		server.start();
+
+		/* other tests in the same VM may have done that already */
+		try {
+			ShineUpdate.instance();
+		} catch (final IllegalStateException e) {
+			ShineUpdate.instantiate("http://127.0.0.1/", "Test", "shineupdatetest", "1.0");
+		}
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.stop(0);
+	}
+
+	@Before
+	public void saveConfig() {
+		connections				= StaticConfig.DOWNLOAD_CONNECTIONS;
+		segmentMinSize			= StaticConfig.DOWNLOAD_SEGMENT_MIN_SIZE;
+		extractWhileDownloading = StaticConfig.EXTRACT_WHILE_DOWNLOADING;
+	}
+
+	@After
+	public void restoreConfig() {
+		StaticConfig.DOWNLOAD_CONNECTIONS	   = connections;
+		StaticConfig.DOWNLOAD_SEGMENT_MIN_SIZE = segmentMinSize;
+		StaticConfig.EXTRACT_WHILE_DOWNLOADING = extractWhileDownloading;
+	}
+
+	@Test
+	public void stopDownloadEndsSingleStream() throws Exception {
+		StaticConfig.DOWNLOAD_CONNECTIONS		= 1;
+		StaticConfig.EXTRACT_WHILE_DOWNLOADING = true;
+		assertCancelsPromptly("0000000000000000000000000000000000000001");
+	}
+
+	@Test
+	public void stopDownloadEndsAllSegments() throws Exception {
+		StaticConfig.DOWNLOAD_CONNECTIONS	   = 4;
+		StaticConfig.DOWNLOAD_SEGMENT_MIN_SIZE = 1024;
+		StaticConfig.EXTRACT_WHILE_DOWNLOADING = false;
+		assertCancelsPromptly("0000000000000000000000000000000000000002");
+	}
+
+	private static void assertCancelsPromptly(final String hash) throws Exception {
+
+		String platform				   = OSUtils.getPlatform().toString().toLowerCase();
+		String url					   = "http://127.0.0.1:" + server.getAddress().getPort() + "/payload";
+		VersionDescription versionDesc =
+			VersionDescription.parse(
+				"version: 2.0\n" + platform + ": " + url + "\n" + platform + "_sha1: " + hash + "\n" + platform
+				+ "_size: " + SIZE + "\n\nforeword");
+
+		Downloader downloader = Downloader.create();
+		downloader.loadUpdate(versionDesc);
+
+		/* wait until bytes are flowing */
+		long deadline = System.currentTimeMillis() + 5000;
+		while (downloader.getProgress().getCompleted() == 0) {
+			assertTrue("download didn't start", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		downloader.stopDownload();
+
+		/* the download threads have to be gone within a bounded time */
+		deadline = System.currentTimeMillis() + 2000;
+		while (true) {
+			Report report = downloader.getReports().poll();
+			if ((report != null) && (report.type == Downloader.Status.CANCELLED)) {
+				break;
+			}
+			assertTrue("download wasn't cancelled in time", System.currentTimeMillis() < deadline);
+			assertFalse("download failed instead of being cancelled", (report != null)
+						&& (report.type == Downloader.Status.ERROR));
+			Thread.sleep(10);
+		}
+
+		for (final Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+			for (final StackTraceElement element : entry.getValue()) {
+				assertFalse(
+					"thread still downloading: " + entry.getKey(),
+					element.getClassName().startsWith(Downloader.class.getName()));
+			}
+		}
+
+		/* kept for resuming */
+		File cacheDir = new File(System.getProperty("java.io.tmpdir"), StaticConfig.TEMP_FILE_PREFIX + "shineupdatetest");
+		assertTrue(new File(cacheDir, hash + ".part").exists() || new File(cacheDir, hash + ".segments").exists());
+	}
+}
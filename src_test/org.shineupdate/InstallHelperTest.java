@@ -1,14 +1,126 @@
-package test.org.shineupdate.updatehelper;
+package test.org.shineupdate;
 
 import static org.junit.Assert.*;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import org.shineupdate.FileHelper;
+import org.shineupdate.InstallHelper;
+
 public class InstallHelperTest {
 
+	private File dir;
+	private File application;
+
+	@Before
+	public void createSlots() {
+		dir		    = Files.createTempDir();
+		application = new File(dir, "app");
+	}
+
+	@After
+	public void deleteSlots() throws IOException {
+		FileHelper.deleteRecursively(dir);
+	}
+
+	@Test
+	public void withoutJournalNothingChanges() throws IOException {
+		version(application, "old");
+		version(slot(".next"), "partial");
+
+		InstallHelper.recover(application);
+
+		assertEquals("old", version(application));
+		assertTrue(slot(".next").exists());
+	}
+
+	@Test
+	public void preparingRemovesPartialCopy() throws IOException {
+		version(application, "old");
+		version(slot(".next"), "partial");
+		journal("PREPARING");
+
+		InstallHelper.recover(application);
+
+		assertEquals("old", version(application));
+		assertFalse(slot(".next").exists());
+		assertFalse(slot(".journal").exists());
+	}
+
+	@Test
+	public void preparedKeepsRunningVersion() throws IOException {
+		version(application, "old");
+		version(slot(".next"), "new");
+		journal("PREPARED");
+
+		InstallHelper.recover(application);
+
+		assertEquals("old", version(application));
+		assertFalse(slot(".next").exists());
+		assertFalse(slot(".journal").exists());
+	}
+
 	@Test
-	public void test() {
-		fail("Not yet implemented");
+	public void switchingCompletesInstall() throws IOException {
+		version(slot(".previous"), "old");
+		version(slot(".next"), "new");
+		journal("SWITCHING");
+
+		InstallHelper.recover(application);
+
+		assertEquals("new", version(application));
+		assertEquals("old", version(slot(".previous")));
+		assertFalse(slot(".next").exists());
+		assertFalse(slot(".journal").exists());
 	}
 
+	@Test
+	public void switchingWithoutNewSlotRestoresPrevious() throws IOException {
+		version(slot(".previous"), "old");
+		journal("SWITCHING");
+
+		InstallHelper.recover(application);
+
+		assertEquals("old", version(application));
+		assertFalse(slot(".journal").exists());
+	}
+
+	@Test
+	public void switchedOnlyDropsJournal() throws IOException {
+		version(slot(".previous"), "old");
+		version(application, "new");
+		journal("SWITCHING");
+
+		InstallHelper.recover(application);
+
+		assertEquals("new", version(application));
+		assertEquals("old", version(slot(".previous")));
+		assertFalse(slot(".journal").exists());
+	}
+
+	private File slot(final String suffix) {
+		return new File(dir, application.getName() + suffix);
+	}
+
+	private void journal(final String step) throws IOException {
+		Files.write(step, slot(".journal"), Charsets.UTF_8);
+	}
+
+	/* an application is a directory with a file naming its version */
+	private static void version(final File slot, final String version) throws IOException {
+		assertTrue(slot.mkdirs());
+		Files.write(version, new File(slot, "version"), Charsets.UTF_8);
+	}
+
+	private static String version(final File slot) throws IOException {
+		return Files.toString(new File(slot, "version"), Charsets.UTF_8);
+	}
 }
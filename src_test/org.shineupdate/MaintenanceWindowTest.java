@@ -0,0 +1,71 @@
+package test.org.shineupdate;
+
+import static org.junit.Assert.*;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.shineupdate.MaintenanceWindow;
+
+public class MaintenanceWindowTest {
+
+	@Test
+	public void windowWithinDay() {
+		MaintenanceWindow window = MaintenanceWindow.between(12, 0, 14, 30);
+
+		assertFalse(window.contains(at(11, 59)));
+		assertTrue(window.contains(at(12, 0)));
+		assertTrue(window.contains(at(14, 29)));
+		assertFalse(window.contains(at(14, 30)));
+
+		assertEquals(TimeUnit.MINUTES.toMillis(61), window.millisUntilOpen(at(10, 59)));
+		assertEquals(TimeUnit.MINUTES.toMillis(90), window.millisUntilClose(at(13, 0)));
+		assertEquals(0, window.millisUntilClose(at(15, 0)));
+	}
+
+	@Test
+	public void windowWrapsPastMidnight() {
+		MaintenanceWindow window = MaintenanceWindow.between(22, 0, 6, 0);
+
+		assertTrue(window.contains(at(23, 0)));
+		assertTrue(window.contains(at(0, 0)));
+		assertTrue(window.contains(at(5, 59)));
+		assertFalse(window.contains(at(6, 0)));
+		assertFalse(window.contains(at(21, 59)));
+
+		assertEquals(0, window.millisUntilOpen(at(1, 0)));
+		assertEquals(TimeUnit.HOURS.toMillis(7), window.millisUntilClose(at(23, 0)));
+		assertEquals(TimeUnit.HOURS.toMillis(2), window.millisUntilClose(at(4, 0)));
+		assertEquals(TimeUnit.HOURS.toMillis(16), window.millisUntilOpen(at(6, 0)));
+	}
+
+	@Test
+	public void windowEndingWhereItStartsSpansTheDay() {
+		MaintenanceWindow window = MaintenanceWindow.between(0, 0, 24, 0);
+
+		assertTrue(window.contains(at(0, 0)));
+		assertTrue(window.contains(at(23, 59)));
+		assertEquals(0, window.millisUntilOpen(at(12, 0)));
+		assertEquals(Long.MAX_VALUE, window.millisUntilClose(at(12, 0)));
+	}
+
+	@Test
+	public void waitsToTheBeginningOfTheMinute() {
+		Calendar time = at(11, 59);
+		time.set(Calendar.SECOND, 30);
+
+		assertEquals(TimeUnit.SECONDS.toMillis(30), MaintenanceWindow.between(12, 0, 13, 0).millisUntilOpen(time));
+	}
+
+	private static Calendar at(final int hour, final int minute) {
+		Calendar time = Calendar.getInstance();
+		time.set(Calendar.HOUR_OF_DAY, hour);
+		time.set(Calendar.MINUTE, minute);
+		time.set(Calendar.SECOND, 0);
+		time.set(Calendar.MILLISECOND, 0);
+
+		return time;
+	}
+}
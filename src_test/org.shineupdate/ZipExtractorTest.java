@@ -0,0 +1,101 @@
+package test.org.shineupdate;
+
+import static org.junit.Assert.*;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.shineupdate.DownloadProgress;
+import org.shineupdate.ShineUpdate;
+import org.shineupdate.ZipExtractor;
+
+public class ZipExtractorTest {
+
+	@BeforeClass
+	public static void instantiate() {
+
+		/* other tests in the same VM may have done that already */
+		try {
+			ShineUpdate.instance();
+		} catch (final IllegalStateException e) {
+			ShineUpdate.instantiate("http://127.0.0.1/", "Test", "shineupdatetest", "1.0");
+		}
+	}
+
+	@Test
+	public void extractsStoredAndDeflatedEntries() throws IOException {
+
+		byte binary[] = new byte[1024 * 300];
+		new Random(1).nextBytes(binary);
+
+		File zip		   = File.createTempFile("shineupdatetest", ".zip");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			out.putNextEntry(new ZipEntry("App.app/"));
+			out.putNextEntry(new ZipEntry("App.app/Contents/MacOS/binary"));
+			out.write(binary);
+			for (int i = 0; i < 500; i++) {
+				out.putNextEntry(new ZipEntry("App.app/Contents/Resources/file" + i + ".txt"));
+				out.write(("file " + i).getBytes(Charsets.UTF_8));
+			}
+
+			byte stored[]  = "stored".getBytes(Charsets.UTF_8);
+			CRC32 crc	   = new CRC32();
+			crc.update(stored);
+			ZipEntry entry = new ZipEntry("App.app/stored.txt");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(stored.length);
+			entry.setCrc(crc.getValue());
+			out.putNextEntry(entry);
+			out.write(stored);
+		} finally {
+			out.close();
+		}
+
+		File target				  = Files.createTempDir();
+		DownloadProgress progress = DownloadProgress.create();
+		ZipExtractor.extract(zip, target, progress);
+
+		assertArrayEquals(binary, Files.toByteArray(new File(target, "App.app/Contents/MacOS/binary")));
+		for (int i = 0; i < 500; i++) {
+			assertEquals(
+				"file " + i,
+				Files.toString(new File(target, "App.app/Contents/Resources/file" + i + ".txt"), Charsets.UTF_8));
+		}
+		assertEquals("stored", Files.toString(new File(target, "App.app/stored.txt"), Charsets.UTF_8));
+		assertEquals(progress.getTotal(), progress.getCompleted());
+	}
+
+	@Test
+	public void rejectsEntriesOutsideOfTarget() throws IOException {
+
+		File zip		   = File.createTempFile("shineupdatetest", ".zip");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+		try {
+			out.putNextEntry(new ZipEntry("../escaped.txt"));
+			out.write(1);
+		} finally {
+			out.close();
+		}
+
+		File target = Files.createTempDir();
+		try {
+			ZipExtractor.extract(zip, target, DownloadProgress.create());
+			fail("extracted an entry outside of the target directory");
+		} catch (final IOException e) {
+			assertFalse(new File(target.getParentFile(), "escaped.txt").exists());
+		}
+	}
+}